@@ -5,4 +5,6 @@ public interface FriendBinConst {
     public static final int FEMALE_FLAG = 1 << 2; // weight 2^2
     public static final int MAX_LASTNAME_LEN = 255; // Max length lastname
     public static final int MAX_WIRE_LENGTH  = 1024; // Max length on the" wire"
+    public static final int COUNT_LEN        = 2;    // Friend count heading a batched datagram
+    public static final int MAX_BATCH_LENGTH = 16 * 1024 * 1024; // Max Length of a compact batch
 }
@@ -1,7 +1,10 @@
 import java.io.*;   // for InputStream and IOException
 import java.net.*;  // for DatagramPacket
+import java.nio.*;  // for ByteBuffer
 
 public interface FriendDecoder {
   Friend decode(InputStream source) throws IOException;
   Friend decode(DatagramPacket packet) throws IOException;
+  // Reads one friend from source's position; on failure the position is unchanged
+  Friend decode(ByteBuffer source) throws IOException;
 }
@@ -1,16 +1,22 @@
-import java.io.*;  // for ByteArrayInputStream
-import java.net.*; // for DatagramPacket
+import java.io.*;           // for ByteArrayInputStream
+import java.net.*;          // for DatagramPacket
+import java.nio.*;          // for ByteBuffer
+import java.nio.charset.*;  // for Charset
 
+// Not safe for concurrent use: the lastname buffer is reused
 public class FriendDecoderBin implements FriendDecoder, FriendBinConst {
 
-  private String encoding;  // Character encoding
+  private String encoding;   // Character encoding
+  private Charset charset;   // Resolved once rather than by name per friend
+  private byte[] stringBuf = new byte[MAX_LASTNAME_LEN];
 
   public FriendDecoderBin() {
-    encoding = DEFAULT_ENCODING;
+    this(DEFAULT_ENCODING);
   }
 
   public FriendDecoderBin(String encoding) {
     this.encoding = encoding;
+    charset = Charset.forName(encoding);
   }
 
   public Friend decode(InputStream wire) throws IOException {
@@ -25,19 +31,50 @@ public class FriendDecoderBin implements FriendDecoder, FriendBinConst {
     int stringLength = src.read(); // Returns an unsigned byte as an int
     if (stringLength == -1)
       throw new EOFException();
-    byte[] stringBuf = new byte[stringLength];
-    src.readFully(stringBuf);
-    String lastname = new String(stringBuf, encoding);
+    src.readFully(stringBuf, 0, stringLength);
+    String lastname = new String(stringBuf, 0, stringLength, charset);
 
+    return newFriend(ID, lastname, streetnumber, zipcode, flags);
+  }
+
+  public Friend decode(DatagramPacket p) throws IOException {
+    return decode(ByteBuffer.wrap(p.getData(), p.getOffset(), p.getLength()));
+  }
+
+  public Friend decode(ByteBuffer src) throws IOException {
+    int start = src.position();
+    if (src.remaining() < 8 + 2 + 4 + 1 + 1)  // Fixed fields and length byte
+      throw new EOFException();
+    long  ID            = src.getLong();
+    short streetnumber  = src.getShort();
+    int   zipcode       = src.getInt();
+    byte  flags         = src.get();
+
+    //Deal with the lastname
+    int stringLength = src.get() & 0xFF;
+    if (src.remaining() < stringLength) {
+      src.position(start);
+      throw new EOFException();
+    }
+    src.get(stringBuf, 0, stringLength);
+    String lastname = new String(stringBuf, 0, stringLength, charset);
+
+    return newFriend(ID, lastname, streetnumber, zipcode, flags);
+  }
+
+  // True if src holds a whole record from its position on: the fixed fields,
+  // then the length byte that says how much lastname follows
+  public static boolean hasRecord(ByteBuffer src) {
+    int remaining = src.remaining();
+    return remaining >= 8 + 2 + 4 + 1 + 1
+      && remaining >= 8 + 2 + 4 + 1 + 1 + (src.get(src.position() + 15) & 0xFF);
+  }
+
+  private static Friend newFriend(long ID, String lastname, short streetnumber,
+				  int zipcode, byte flags) {
     return new Friend(ID,lastname, streetnumber, zipcode,
       ((flags & SINGLE_FLAG) == SINGLE_FLAG),
 		      ((flags & RICH_FLAG) == RICH_FLAG),
 		      ((flags & FEMALE_FLAG) == FEMALE_FLAG));
   }
-
-  public Friend decode(DatagramPacket p) throws IOException {
-    ByteArrayInputStream payload =
-      new ByteArrayInputStream(p.getData(), p.getOffset(), p.getLength());
-    return decode(payload);
-  }
 }
@@ -0,0 +1,175 @@
+import java.io.*;           // for DataInputStream and IOException
+import java.net.*;          // for DatagramPacket
+import java.nio.*;          // for ByteBuffer
+import java.nio.charset.*;  // for Charset
+
+// Decodes the batches written by FriendEncoderCompact (see there for the
+// format). decode(InputStream) and decode(ByteBuffer) hand out one friend at
+// a time, reading the next batch when the last one is used up.
+// Not safe for concurrent use: the pending batch and lastname buffer are reused
+public class FriendDecoderCompact implements FriendDecoder, FriendBinConst {
+
+  private String encoding;   // Character encoding
+  private Charset charset;   // Resolved once rather than by name per lastname
+  private byte[] stringBuf = new byte[MAX_LASTNAME_LEN];
+  private Friend[] pending = new Friend[0];  // Rest of the last batch read
+  private int next;
+
+  public FriendDecoderCompact() {
+    this(DEFAULT_ENCODING);
+  }
+
+  public FriendDecoderCompact(String encoding) {
+    this.encoding = encoding;
+    charset = Charset.forName(encoding);
+  }
+
+  public Friend decode(InputStream wire) throws IOException {
+    DataInputStream src = new DataInputStream(wire);
+    while (next == pending.length) {
+      int length = src.readInt();
+      if (length < 0 || length > MAX_BATCH_LENGTH)  // Don't allocate what the wire says blindly
+	throw new IOException("Corrupt Friend batch");
+      byte[] batch = new byte[length + 4];
+      src.readFully(batch, 4, length);
+      ByteBuffer.wrap(batch).putInt(length);
+      pending = decodeBatch(ByteBuffer.wrap(batch));
+      next = 0;
+    }
+    return take();
+  }
+
+  // The first friend in the packet's batch; decodeBatch returns them all
+  public Friend decode(DatagramPacket p) throws IOException {
+    Friend[] batch = decodeBatch(ByteBuffer.wrap(p.getData(), p.getOffset(), p.getLength()));
+    if (batch.length == 0)
+      throw new EOFException();
+    return batch[0];
+  }
+
+  public Friend decode(ByteBuffer src) throws IOException {
+    while (next == pending.length) {
+      pending = decodeBatch(src);
+      next = 0;
+    }
+    return take();
+  }
+
+  private Friend take() {
+    Friend friend = pending[next];
+    pending[next++] = null;
+    return friend;
+  }
+
+  // True if src holds a whole batch from its position on
+  public static boolean hasBatch(ByteBuffer src) {
+    int remaining = src.remaining();
+    return remaining >= 4 && remaining - 4 >= src.getInt(src.position());
+  }
+
+  // Reads one batch from src's position; on failure the position is unchanged
+  public Friend[] decodeBatch(ByteBuffer src) throws IOException {
+    int start = src.position();
+    if (src.remaining() < 4)
+      throw new EOFException();
+    int length = src.getInt(start);
+    if (length < 0 || length > MAX_BATCH_LENGTH)
+      throw new IOException("Corrupt Friend batch");
+    if (src.remaining() - 4 < length)
+      throw new EOFException();
+
+    int limit = src.limit();
+    src.limit(start + 4 + length);
+    src.position(start + 4);
+    try {
+      int count = getCount(src, length);
+      Friend[] friends = new Friend[count];
+
+      int zipCount = getCount(src, count);
+      int[] zips = new int[zipCount];
+      long zip = 0;
+      for (int i = 0; i < zipCount; i++) {
+	zip += unzigzag(getVarlong(src));
+	zips[i] = (int) zip;
+      }
+
+      int nameCount = getCount(src, count);
+      String[] names = new String[nameCount];
+      for (int i = 0; i < nameCount; i++) {
+	int stringLength = getCount(src, MAX_LASTNAME_LEN);
+	src.get(stringBuf, 0, stringLength);
+	names[i] = new String(stringBuf, 0, stringLength, charset);
+      }
+
+      long ID = 0;
+      for (int i = 0; i < count; i++) {
+	ID += unzigzag(getVarlong(src));
+	friends[i] = new Friend(ID, null, (short) 0, 0, false, false, false);
+      }
+      for (int i = 0; i < count; i++)
+	friends[i].zipCode = zips[getCount(src, zipCount - 1)];
+      for (int i = 0; i < count; i++)
+	friends[i].lastName = names[getCount(src, nameCount - 1)];
+      for (int i = 0; i < count; i++)
+	friends[i].streetNumber = (short) getVarint(src);
+
+      int bits = 0, nbits = 0;
+      for (int i = 0; i < count; i++) {
+	if (nbits < 3) {
+	  bits |= (src.get() & 0xFF) << nbits;
+	  nbits += 8;
+	}
+	friends[i].single = (bits & SINGLE_FLAG) == SINGLE_FLAG;
+	friends[i].rich   = (bits & RICH_FLAG) == RICH_FLAG;
+	friends[i].female = (bits & FEMALE_FLAG) == FEMALE_FLAG;
+	bits >>>= 3;
+	nbits -= 3;
+      }
+
+      if (src.hasRemaining())
+	throw new IOException("Corrupt Friend batch");
+      src.limit(limit);
+      return friends;
+    } catch (IOException | BufferUnderflowException e) {
+      src.limit(limit);
+      src.position(start);
+      if (e instanceof IOException)
+	throw (IOException) e;
+      throw new IOException("Corrupt Friend batch");  // Ran off the end
+    }
+  }
+
+  // A varint that must be at most max
+  private static int getCount(ByteBuffer src, int max) throws IOException {
+    int v = getVarint(src);
+    if (v < 0 || v > max)
+      throw new IOException("Corrupt Friend batch");
+    return v;
+  }
+
+  private static long unzigzag(long v) {
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  private static int getVarint(ByteBuffer src) throws IOException {
+    int v = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = src.get();
+      v |= (b & 0x7F) << shift;
+      if (b >= 0)
+	return v;
+    }
+    throw new IOException("Corrupt Friend batch");
+  }
+
+  private static long getVarlong(ByteBuffer src) throws IOException {
+    long v = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = src.get();
+      v |= (long) (b & 0x7F) << shift;
+      if (b >= 0)
+	return v;
+    }
+    throw new IOException("Corrupt Friend batch");
+  }
+}
@@ -1,3 +1,8 @@
+import java.io.*;   // for IOException
+import java.nio.*;  // for ByteBuffer
+
 public interface FriendEncoder {
   byte[] encode(Friend friend) throws Exception;
+  // Appends friend at out's position; on failure out's position is unchanged
+  void encode(Friend friend, ByteBuffer out) throws IOException;
 }
@@ -1,25 +1,43 @@
-import java.io.*;  // for ByteArrayOutputStream and DataOutputStream
+import java.io.*;           // for IOException
+import java.nio.*;          // for ByteBuffer and CharBuffer
+import java.nio.charset.*;  // for Charset and CharsetEncoder
 
+// Not safe for concurrent use: the CharsetEncoder and scratch buffer are reused
 public class FriendEncoderBin implements FriendEncoder, FriendBinConst {
 
-  private String encoding;  // Character encoding
+  private String encoding;         // Character encoding
+  private CharsetEncoder encoder;  // Resolved once, reset per friend
+  private ByteBuffer scratch = ByteBuffer.allocate(MAX_WIRE_LENGTH);
 
   public FriendEncoderBin() {
-    encoding = DEFAULT_ENCODING;
+    this(DEFAULT_ENCODING);
   }
 
   public FriendEncoderBin(String encoding) {
     this.encoding = encoding;
+    // Same substitution as String.getBytes for names the charset can't represent
+    encoder = Charset.forName(encoding).newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
   }
 
   public byte[] encode(Friend friend) throws Exception {
+    scratch.clear();
+    encode(friend, scratch);
+    byte[] wire = new byte[scratch.position()];
+    scratch.flip();
+    scratch.get(wire);
+    return wire;
+  }
 
-    ByteArrayOutputStream buf = new ByteArrayOutputStream();
-    DataOutputStream out = new DataOutputStream(buf);
-    out.writeLong(friend.ID);
-    // Will deal with the lasname at the end
-    out.writeShort(friend.streetNumber);
-    out.writeInt(friend.zipCode);
+  public void encode(Friend friend, ByteBuffer out) throws IOException {
+    if (out.remaining() < 8 + 2 + 4 + 1 + 1)  // Fixed fields and length byte
+      throw new BufferOverflowException();
+    int start = out.position();
+    out.putLong(friend.ID);
+    // Will deal with the lastname at the end
+    out.putShort(friend.streetNumber);
+    out.putInt(friend.zipCode);
     byte flags = 0;
     if (friend.single)
 	flags = SINGLE_FLAG;
@@ -27,14 +45,27 @@ public class FriendEncoderBin implements FriendEncoder, FriendBinConst {
 	flags |= RICH_FLAG;
     if (friend.female)
 	flags |= FEMALE_FLAG;
-    out.writeByte(flags);
-
-    byte[] encodedLastname = friend.lastName.getBytes(encoding);
-    if (encodedLastname.length > MAX_LASTNAME_LEN)
-      throw new IOException("Friend lastname exceeds encoded length limit");
-    out.writeByte(encodedLastname.length); // provides length of lastname
-    out.write(encodedLastname);
-    out.flush();
-    return buf.toByteArray();
+    out.put(flags);
+
+    // Encode the lastname straight after its length byte, with the limit
+    // capped so an over-long name stops at MAX_LASTNAME_LEN
+    int lengthAt = out.position();
+    out.put((byte) 0);
+    int nameStart = out.position();
+    int limit = out.limit();
+    out.limit(Math.min(limit, nameStart + MAX_LASTNAME_LEN));
+    encoder.reset();
+    CoderResult result = encoder.encode(CharBuffer.wrap(friend.lastName), out, true);
+    if (!result.isOverflow())
+      result = encoder.flush(out);
+    out.limit(limit);
+
+    if (result.isOverflow()) {
+      out.position(start);
+      if (limit - nameStart > MAX_LASTNAME_LEN)
+	throw new IOException("Friend lastname exceeds encoded length limit");
+      throw new BufferOverflowException();
+    }
+    out.put(lengthAt, (byte) (out.position() - nameStart)); // provides length of lastname
   }
 }
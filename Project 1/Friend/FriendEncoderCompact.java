@@ -0,0 +1,225 @@
+import java.io.*;           // for IOException
+import java.nio.*;          // for ByteBuffer and CharBuffer
+import java.nio.charset.*;  // for Charset and CharsetEncoder
+import java.util.*;         // for Arrays
+
+// Compact encoding for bulk transfers: friends travel in batches, each
+//
+//   Length (4) | Count | Zip dictionary | Lastname dictionary |
+//   IDs | Zip indexes | Lastname indexes | Street #s | Flag bits
+//
+// Length is a big-endian int giving the bytes after it, so batches can be
+// streamed or stored back-to-back. It is at most MAX_BATCH_LENGTH (at least
+// half a million friends), and decoders refuse anything longer rather than
+// allocate it. Everything else is a varint (7 bits a byte, low group first,
+// high bit set on all but the last byte):
+//   Count, then Count of each column
+//   Zip dictionary:      entry count, then each zip as a zigzag delta
+//                        from the entry before
+//   Lastname dictionary: entry count, then each lastname as its encoded
+//                        length and bytes
+//   IDs:                 zigzag delta from the previous ID (the first from 0)
+//   Zip and lastname indexes into the dictionaries, and street #s unsigned
+// Flag bits are SINGLE_FLAG, RICH_FLAG and FEMALE_FLAG for each friend in
+// turn, 3 bits apiece, packed from the low bit of the first byte.
+// Sorted IDs, repeated zips and repeated lastnames cost a byte or two each.
+//
+// Not safe for concurrent use: the dictionaries and scratch buffers are reused
+public class FriendEncoderCompact implements FriendEncoder, FriendBinConst {
+
+  private String encoding;         // Character encoding
+  private CharsetEncoder encoder;  // Resolved once, reset per lastname
+  private ByteBuffer nameBuf = ByteBuffer.allocate(MAX_LASTNAME_LEN);
+  private ByteBuffer scratch = ByteBuffer.allocate(MAX_WIRE_LENGTH);
+  private Friend[] one = new Friend[1];
+
+  // Per-batch dictionaries: open-addressed tables of entry index + 1 (0 = free)
+  private int[] zipTable = new int[0];
+  private int[] nameTable = new int[0];
+  private int[] zips = new int[0];           // Zip dictionary, first-seen order
+  private String[] names = new String[0];    // Lastname dictionary, same
+  private int zipCount, nameCount;
+  private int[] zipIndex = new int[0];       // Per friend, index into zips
+  private int[] nameIndex = new int[0];      // Per friend, index into names
+
+  public FriendEncoderCompact() {
+    this(DEFAULT_ENCODING);
+  }
+
+  public FriendEncoderCompact(String encoding) {
+    this.encoding = encoding;
+    // Same substitution as String.getBytes for names the charset can't represent
+    encoder = Charset.forName(encoding).newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  // A batch of one
+  public byte[] encode(Friend friend) throws Exception {
+    scratch.clear();
+    encode(friend, scratch);
+    byte[] wire = new byte[scratch.position()];
+    scratch.flip();
+    scratch.get(wire);
+    return wire;
+  }
+
+  // A batch of one
+  public void encode(Friend friend, ByteBuffer out) throws IOException {
+    one[0] = friend;
+    try {
+      encode(one, 0, 1, out);
+    } finally {
+      one[0] = null;
+    }
+  }
+
+  // Appends friends[offset, offset + count) as one batch at out's position;
+  // on failure out's position is unchanged
+  public void encode(Friend[] friends, int offset, int count, ByteBuffer out)
+    throws IOException {
+    int start = out.position();
+    try {
+      out.putInt(0);  // Length, filled in at the end
+      index(friends, offset, count);
+      putVarint(out, count);
+
+      putVarint(out, zipCount);
+      int prevZip = 0;
+      for (int i = 0; i < zipCount; i++) {
+	putVarlong(out, zigzag((long) zips[i] - prevZip));
+	prevZip = zips[i];
+      }
+
+      putVarint(out, nameCount);
+      for (int i = 0; i < nameCount; i++) {
+	encodeName(names[i]);
+	putVarint(out, nameBuf.remaining());
+	out.put(nameBuf);
+      }
+
+      long prevID = 0;
+      for (int i = 0; i < count; i++) {
+	long ID = friends[offset + i].ID;
+	putVarlong(out, zigzag(ID - prevID));
+	prevID = ID;
+      }
+      for (int i = 0; i < count; i++)
+	putVarint(out, zipIndex[i]);
+      for (int i = 0; i < count; i++)
+	putVarint(out, nameIndex[i]);
+      for (int i = 0; i < count; i++)
+	putVarint(out, friends[offset + i].streetNumber & 0xFFFF);
+
+      int bits = 0, nbits = 0;
+      for (int i = 0; i < count; i++) {
+	Friend friend = friends[offset + i];
+	int flags = 0;
+	if (friend.single)
+	  flags = SINGLE_FLAG;
+	if (friend.rich)
+	  flags |= RICH_FLAG;
+	if (friend.female)
+	  flags |= FEMALE_FLAG;
+	bits |= flags << nbits;
+	nbits += 3;
+	if (nbits >= 8) {
+	  out.put((byte) bits);
+	  bits >>>= 8;
+	  nbits -= 8;
+	}
+      }
+      if (nbits > 0)
+	out.put((byte) bits);
+
+      int length = out.position() - start - 4;
+      if (length > MAX_BATCH_LENGTH)
+	throw new IOException("Friend batch of " + length + " bytes is longer than "
+			      + MAX_BATCH_LENGTH + "; send fewer friends per batch");
+      out.putInt(start, length);
+    } catch (IOException | RuntimeException e) {
+      out.position(start);
+      throw e;
+    } finally {
+      Arrays.fill(names, 0, nameCount, null);  // Don't pin the caller's strings
+    }
+  }
+
+  // Builds the zip and lastname dictionaries for a batch and each friend's
+  // index into them
+  private void index(Friend[] friends, int offset, int count) {
+    if (zipIndex.length < count) {
+      zipIndex = new int[count];
+      nameIndex = new int[count];
+      zips = new int[count];
+      names = new String[count];
+    }
+    int tableSize = Integer.highestOneBit(Math.max(8, count) * 2 - 1) << 1;  // Under half full
+    if (zipTable.length < tableSize) {
+      zipTable = new int[tableSize];
+      nameTable = new int[tableSize];
+    }
+    Arrays.fill(zipTable, 0, tableSize, 0);
+    Arrays.fill(nameTable, 0, tableSize, 0);
+    zipCount = 0;
+    nameCount = 0;
+    int mask = tableSize - 1;
+    int shift = Integer.numberOfLeadingZeros(tableSize) + 1;  // Top bits of the product
+
+    for (int i = 0; i < count; i++) {
+      Friend friend = friends[offset + i];
+
+      int zip = friend.zipCode;
+      int slot = (zip * 0x9E3779B9) >>> shift;
+      while (zipTable[slot] != 0 && zips[zipTable[slot] - 1] != zip)
+	slot = (slot + 1) & mask;
+      if (zipTable[slot] == 0) {
+	zips[zipCount] = zip;
+	zipTable[slot] = ++zipCount;
+      }
+      zipIndex[i] = zipTable[slot] - 1;
+
+      String name = friend.lastName;
+      slot = (name.hashCode() * 0x9E3779B9) >>> shift;
+      while (nameTable[slot] != 0 && !names[nameTable[slot] - 1].equals(name))
+	slot = (slot + 1) & mask;
+      if (nameTable[slot] == 0) {
+	names[nameCount] = name;
+	nameTable[slot] = ++nameCount;
+      }
+      nameIndex[i] = nameTable[slot] - 1;
+    }
+  }
+
+  // Leaves the encoded name in nameBuf, ready to read
+  private void encodeName(String name) throws IOException {
+    nameBuf.clear();
+    encoder.reset();
+    CoderResult result = encoder.encode(CharBuffer.wrap(name), nameBuf, true);
+    if (!result.isOverflow())
+      result = encoder.flush(nameBuf);
+    if (result.isOverflow())
+      throw new IOException("Friend lastname exceeds encoded length limit");
+    nameBuf.flip();
+  }
+
+  static long zigzag(long v) {
+    return (v << 1) ^ (v >> 63);
+  }
+
+  static void putVarint(ByteBuffer out, int v) {
+    while ((v & ~0x7F) != 0) {
+      out.put((byte) (v | 0x80));
+      v >>>= 7;
+    }
+    out.put((byte) v);
+  }
+
+  static void putVarlong(ByteBuffer out, long v) {
+    while ((v & ~0x7FL) != 0) {
+      out.put((byte) (v | 0x80));
+      v >>>= 7;
+    }
+    out.put((byte) v);
+  }
+}
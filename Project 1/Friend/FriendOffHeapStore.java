@@ -0,0 +1,281 @@
+import java.io.*;           // for EOFException and IOException
+import java.nio.*;          // for ByteBuffer and CharBuffer
+import java.nio.charset.*;  // for Charset and CharsetEncoder
+import java.util.*;         // for ArrayList and Arrays
+
+// Friends held outside the Java heap in fixed 20-byte slots, so tens of
+// millions of them cost the collector nothing. A slot is the start of the
+// FriendEncoderBin record with the lastname replaced by a reference:
+//
+//   ID (8) | Street # (2) | Zip (4) | Flags (1) | Lastname length (1) | Lastname # (4)
+//
+// Lastnames are interned: each distinct one is stored once, as its encoded
+// bytes, in a separate off-heap arena, and slots refer to it by number.
+// Slots live in direct buffers of CHUNK_SLOTS each, so capacity is not
+// bound by one buffer's 2 GB limit.
+//
+// add(ByteBuffer) copies a record straight from the wire and interns its
+// lastname by comparing bytes, so ingest creates no objects at all. A View
+// reads fields in place; writeTo re-encodes a friend by copying bytes.
+// Queries scan the slots rather than use an index as FriendStore does.
+//
+// Direct buffers are limited by -XX:MaxDirectMemorySize, which defaults to
+// the maximum heap size (-Xmx). 30 million friends need 29 chunks, about
+// 600 MB, so a small heap needs the limit raised, e.g.
+// -XX:MaxDirectMemorySize=1g; otherwise the allocation of a chunk fails
+// with OutOfMemoryError. Not safe for concurrent use.
+public class FriendOffHeapStore implements FriendBinConst {
+
+  static final int SLOT_SIZE = 20;
+  static final int NAME_AT = 16;               // Offset of Lastname # in a slot
+  static final int CHUNK_SLOTS = 1 << 20;      // 20 MB per chunk
+  static final int WIRE_FIXED = 16;            // Bytes shared with the wire record
+
+  private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+  private int size;
+
+  // Lastname arena: entries are the encoded bytes, found by nameAt/nameLength
+  private ByteBuffer arena = ByteBuffer.allocateDirect(64 * 1024);
+  private int[] nameAt = new int[256];
+  private byte[] nameLength = new byte[256];
+  private String[] nameCache = new String[256];  // Decoded on first use
+  private int names;
+  private int[] nameTable = new int[512];        // Open-addressed, lastname # + 1
+
+  private Charset charset;
+  private CharsetEncoder encoder;
+  private ByteBuffer nameBuf = ByteBuffer.allocate(MAX_LASTNAME_LEN);
+
+  public FriendOffHeapStore() {
+    this(DEFAULT_ENCODING);
+  }
+
+  public FriendOffHeapStore(String encoding) {
+    charset = Charset.forName(encoding);
+    // Same substitution as String.getBytes for names the charset can't represent
+    encoder = charset.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // Number of distinct lastnames
+  public int lastNames() {
+    return names;
+  }
+
+  // Off-heap bytes in use by slots and the lastname arena
+  public long offHeapBytes() {
+    return (long) chunks.size() * CHUNK_SLOTS * SLOT_SIZE + arena.capacity();
+  }
+
+  // Copies one FriendEncoderBin record from src's position and advances
+  // past it; returns its index. On failure the position is unchanged.
+  public int add(ByteBuffer src) throws IOException {
+    if (!FriendDecoderBin.hasRecord(src))
+      throw new EOFException();
+    int at = src.position();
+    int length = src.get(at + WIRE_FIXED - 1) & 0xFF;
+    int name = intern(src, at + WIRE_FIXED, length);
+
+    int index = size;
+    ByteBuffer chunk = slotChunk(index);
+    int slot = (index & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+    chunk.put(slot, src, at, WIRE_FIXED);
+    chunk.putInt(slot + NAME_AT, name);
+    size++;
+    src.position(at + WIRE_FIXED + length);
+    return index;
+  }
+
+  // Stores friend's fields; returns its index
+  public int add(Friend friend) throws IOException {
+    nameBuf.clear();
+    encoder.reset();
+    CoderResult result = encoder.encode(CharBuffer.wrap(friend.lastName), nameBuf, true);
+    if (!result.isOverflow())
+      result = encoder.flush(nameBuf);
+    if (result.isOverflow())
+      throw new IOException("Friend lastname exceeds encoded length limit");
+    int name = intern(nameBuf, 0, nameBuf.position());
+
+    int index = size;
+    ByteBuffer chunk = slotChunk(index);
+    int slot = (index & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+    byte flags = 0;
+    if (friend.single)
+      flags = SINGLE_FLAG;
+    if (friend.rich)
+      flags |= RICH_FLAG;
+    if (friend.female)
+      flags |= FEMALE_FLAG;
+    chunk.putLong(slot, friend.ID);
+    chunk.putShort(slot + 8, friend.streetNumber);
+    chunk.putInt(slot + 10, friend.zipCode);
+    chunk.put(slot + 14, flags);
+    chunk.put(slot + 15, nameLength[name]);
+    chunk.putInt(slot + NAME_AT, name);
+    size++;
+    return index;
+  }
+
+  // Number of friends matching q, read from the slots in place
+  public int count(FriendStore.Query q) {
+    int mask = q.set | q.clear;
+    int n = 0;
+    for (int c = 0; c < chunks.size(); c++) {
+      ByteBuffer chunk = chunks.get(c);
+      int end = Math.min(CHUNK_SLOTS, size - c * CHUNK_SLOTS) * SLOT_SIZE;
+      for (int slot = 0; slot < end; slot += SLOT_SIZE) {
+	int zip = chunk.getInt(slot + 10);
+	if ((chunk.get(slot + 14) & mask) == q.set && zip >= q.zipLow && zip <= q.zipHigh)
+	  n++;
+      }
+    }
+    return n;
+  }
+
+  // Runs each query and prints how many friends matched and how long it took
+  public void report(FriendStore.Query[] queries) {
+    for (FriendStore.Query q : queries) {
+      long start = System.nanoTime();
+      int n = count(q);
+      System.out.printf("%s: %d of %d friends in %.1f us%n",
+			q, n, size, (System.nanoTime() - start) / 1e3);
+    }
+  }
+
+  // A new Friend object for the friend at index
+  public Friend get(int index) {
+    return view().moveTo(index).toFriend();
+  }
+
+  // A reusable cursor over the store
+  public View view() {
+    return new View();
+  }
+
+  // Reads one friend's fields in place. Point it at a friend with moveTo and
+  // reuse it for the next, so walking the store allocates nothing.
+  public class View {
+    private ByteBuffer chunk;
+    private int slot;
+
+    public View moveTo(int index) {
+      if (index < 0 || index >= size)
+	throw new IndexOutOfBoundsException("Friend " + index + " of " + size);
+      chunk = chunks.get(index / CHUNK_SLOTS);
+      slot = (index & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+      return this;
+    }
+
+    public long getID()            { return chunk.getLong(slot); }
+    public short getStreetNumber() { return chunk.getShort(slot + 8); }
+    public int getZipCode()        { return chunk.getInt(slot + 10); }
+    public int getFlags()          { return chunk.get(slot + 14); }
+    public boolean isSingle()      { return (getFlags() & SINGLE_FLAG) != 0; }
+    public boolean isRich()        { return (getFlags() & RICH_FLAG) != 0; }
+    public boolean isFemale()      { return (getFlags() & FEMALE_FLAG) != 0; }
+
+    // The interned lastname; every friend with this name shares one String
+    public String getLastName() {
+      int name = chunk.getInt(slot + NAME_AT);
+      if (nameCache[name] == null) {
+	byte[] bytes = new byte[nameLength[name] & 0xFF];
+	arena.get(nameAt[name], bytes);
+	nameCache[name] = new String(bytes, charset);
+      }
+      return nameCache[name];
+    }
+
+    // Appends this friend as a FriendEncoderBin record, by copying bytes
+    public void writeTo(ByteBuffer out) {
+      int name = chunk.getInt(slot + NAME_AT);
+      int length = nameLength[name] & 0xFF;
+      if (out.remaining() < WIRE_FIXED + length)
+	throw new BufferOverflowException();
+      int at = out.position();
+      out.put(at, chunk, slot, WIRE_FIXED);
+      out.put(at + WIRE_FIXED, arena, nameAt[name], length);
+      out.position(at + WIRE_FIXED + length);
+    }
+
+    public Friend toFriend() {
+      return new Friend(getID(), getLastName(), getStreetNumber(), getZipCode(),
+			isSingle(), isRich(), isFemale());
+    }
+  }
+
+  private ByteBuffer slotChunk(int index) {
+    if (index == Integer.MAX_VALUE)
+      throw new IllegalStateException("FriendOffHeapStore is full");
+    if (index / CHUNK_SLOTS == chunks.size())
+      chunks.add(ByteBuffer.allocateDirect(CHUNK_SLOTS * SLOT_SIZE));
+    return chunks.get(index / CHUNK_SLOTS);
+  }
+
+  // The number of the lastname in src[at, at + length), adding it if new
+  private int intern(ByteBuffer src, int at, int length) {
+    int mask = nameTable.length - 1;
+    int slot = slotOf(hash(src, at, length), mask);
+    while (nameTable[slot] != 0) {
+      int name = nameTable[slot] - 1;
+      if ((nameLength[name] & 0xFF) == length && sameBytes(nameAt[name], src, at, length))
+	return name;
+      slot = (slot + 1) & mask;
+    }
+
+    if (names == nameAt.length) {
+      nameAt = Arrays.copyOf(nameAt, names * 2);
+      nameLength = Arrays.copyOf(nameLength, names * 2);
+      nameCache = Arrays.copyOf(nameCache, names * 2);
+    }
+    if (arena.remaining() < length) {
+      ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(arena.capacity() * 2, arena.position() + length));
+      bigger.put(arena.flip());
+      arena = bigger;
+    }
+    int name = names++;
+    nameAt[name] = arena.position();
+    nameLength[name] = (byte) length;
+    arena.put(arena.position(), src, at, length);
+    arena.position(arena.position() + length);
+    nameTable[slot] = name + 1;
+    if (names * 2 > nameTable.length)
+      rehash();
+    return name;
+  }
+
+  private boolean sameBytes(int arenaAt, ByteBuffer src, int at, int length) {
+    for (int i = 0; i < length; i++)
+      if (arena.get(arenaAt + i) != src.get(at + i))
+	return false;
+    return true;
+  }
+
+  private static int hash(ByteBuffer src, int at, int length) {
+    int hash = 1;
+    for (int i = 0; i < length; i++)
+      hash = 31 * hash + src.get(at + i);
+    return hash;
+  }
+
+  // Top bits of the product, as many as the table needs
+  private static int slotOf(int hash, int mask) {
+    return (hash * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask);
+  }
+
+  private void rehash() {
+    nameTable = new int[nameTable.length * 2];
+    int mask = nameTable.length - 1;
+    for (int name = 0; name < names; name++) {
+      int slot = slotOf(hash(arena, nameAt[name], nameLength[name] & 0xFF), mask);
+      while (nameTable[slot] != 0)
+	slot = (slot + 1) & mask;
+      nameTable[slot] = name + 1;
+    }
+  }
+}
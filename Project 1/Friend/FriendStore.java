@@ -0,0 +1,265 @@
+import java.lang.management.*;  // for BufferPoolMXBean
+import java.util.*;  // for Arrays and HashMap
+
+// In-memory column store of received friends, indexed for flag and zip code
+// queries such as "single & rich & zip in [36800, 36899]".
+//
+// Each flag has a bitmap with one bit per friend, so a flags-only query is
+// an AND of whole words. Those bitmaps are about half ones, where
+// compression gains nothing, so they are plain words. Zip codes have a
+// sorted (zip, flags, row) index, one long per friend, which is the sparse
+// form of a bitmap per zip: a zip range is found by binary search and its
+// entries are checked against the query's flags in sequence, without
+// touching the rows themselves. Friends added since the index was last
+// built are scanned directly; the index is rebuilt by merging them in once
+// they grow past a quarter of it.
+//
+// Rows are numbered from 0 in the order friends are added, up to MAX_ROWS.
+// Lastnames are stored once each. Not safe for concurrent use.
+public class FriendStore implements FriendBinConst {
+
+  public static final int MAX_ROWS = 1 << 29;   // Index entries keep 29 bits of row
+  private static final int MIN_TAIL = 1 << 16;  // Scan this many before indexing
+
+  // A query: flags that must be set, flags that must be clear, zip range
+  public static class Query {
+    int set, clear;
+    int zipLow = Integer.MIN_VALUE, zipHigh = Integer.MAX_VALUE;
+    String text;
+
+    // Parses comma-separated terms: single, married, rich, poor, female,
+    // male, zip=<Zip> and zip=<Low>-<High>, e.g. "single,rich,zip=36800-36899"
+    public static Query parse(String text) {
+      Query q = new Query();
+      q.text = text;
+      for (String term : text.split(",")) {
+	if (term.startsWith("zip=")) {
+	  String range = term.substring(4);
+	  int dash = range.indexOf('-', 1);
+	  q.zipLow  = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+	  q.zipHigh = Integer.parseInt(dash < 0 ? range : range.substring(dash + 1));
+	} else {
+	  switch (term) {
+	  case "single":  q.set   |= SINGLE_FLAG; break;
+	  case "married": q.clear |= SINGLE_FLAG; break;
+	  case "rich":    q.set   |= RICH_FLAG;   break;
+	  case "poor":    q.clear |= RICH_FLAG;   break;
+	  case "female":  q.set   |= FEMALE_FLAG; break;
+	  case "male":    q.clear |= FEMALE_FLAG; break;
+	  default:
+	    throw new IllegalArgumentException("Unknown query term: " + term);
+	  }
+	}
+      }
+      return q;
+    }
+
+    boolean allZips() {
+      return zipLow == Integer.MIN_VALUE && zipHigh == Integer.MAX_VALUE;
+    }
+
+    public String toString() {
+      return text;
+    }
+  }
+
+  private int size;
+  private long[] ids = new long[1024];
+  private int[] names = new int[1024];      // Index into nameList
+  private short[] streets = new short[1024];
+  private int[] zips = new int[1024];
+  private byte[] flags = new byte[1024];    // FriendBinConst flag bits per row
+  private long[] single = new long[16];     // Flag bitmaps, bit r for row r
+  private long[] rich = new long[16];
+  private long[] female = new long[16];
+
+  private ArrayList<String> nameList = new ArrayList<String>();
+  private HashMap<String, Integer> nameIndex = new HashMap<String, Integer>();
+
+  private long[] zipIndex = new long[0];    // (zip << 32 | flags << 29 | row), sorted
+  private int indexed;                      // Rows [0, indexed) are in zipIndex
+
+  // Returns the friend's row
+  public int add(Friend friend) {
+    if (size == MAX_ROWS)
+      throw new IllegalStateException("FriendStore is full");
+    if (size == ids.length) {
+      int capacity = size * 2;
+      ids     = Arrays.copyOf(ids, capacity);
+      names   = Arrays.copyOf(names, capacity);
+      streets = Arrays.copyOf(streets, capacity);
+      zips    = Arrays.copyOf(zips, capacity);
+      flags   = Arrays.copyOf(flags, capacity);
+      single  = Arrays.copyOf(single, capacity / 64);
+      rich    = Arrays.copyOf(rich, capacity / 64);
+      female  = Arrays.copyOf(female, capacity / 64);
+    }
+    int row = size++;
+
+    Integer name = nameIndex.get(friend.lastName);
+    if (name == null) {
+      name = nameList.size();
+      nameList.add(friend.lastName);
+      nameIndex.put(friend.lastName, name);
+    }
+
+    ids[row]     = friend.ID;
+    names[row]   = name;
+    streets[row] = friend.streetNumber;
+    zips[row]    = friend.zipCode;
+    long bit = 1L << row;  // Shift uses the low 6 bits of row
+    byte f = 0;
+    if (friend.single) {
+      f = SINGLE_FLAG;
+      single[row >>> 6] |= bit;
+    }
+    if (friend.rich) {
+      f |= RICH_FLAG;
+      rich[row >>> 6] |= bit;
+    }
+    if (friend.female) {
+      f |= FEMALE_FLAG;
+      female[row >>> 6] |= bit;
+    }
+    flags[row] = f;
+    return row;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public Friend get(int row) {
+    if (row < 0 || row >= size)
+      throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+    byte f = flags[row];
+    return new Friend(ids[row], nameList.get(names[row]), streets[row], zips[row],
+		      (f & SINGLE_FLAG) != 0, (f & RICH_FLAG) != 0, (f & FEMALE_FLAG) != 0);
+  }
+
+  public int count(Query q) {
+    return q.allZips() ? flagQuery(q, null) : zipQuery(q, null);
+  }
+
+  // Matching rows: ascending for flags-only queries, by zip otherwise
+  public int[] find(Query q) {
+    int[] rows = new int[count(q)];
+    if (q.allZips())
+      flagQuery(q, rows);
+    else
+      zipQuery(q, rows);
+    return rows;
+  }
+
+  // Runs each query and prints how many friends matched and how long it took
+  public void report(Query[] queries) {
+    for (Query q : queries) {
+      long start = System.nanoTime();
+      int n = count(q);
+      System.out.printf("%s: %d of %d friends in %.1f us%n",
+			q, n, size, (System.nanoTime() - start) / 1e3);
+    }
+  }
+
+  // Heap in use after a collection and direct buffer bytes, for comparing
+  // this store with FriendOffHeapStore
+  public static String memoryInUse() {
+    System.gc();
+    Runtime rt = Runtime.getRuntime();
+    long direct = 0;
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+      if (pool.getName().equals("direct"))
+	direct = pool.getMemoryUsed();
+    return String.format("Heap in use: %.1f MB, direct buffers: %.1f MB",
+			 (rt.totalMemory() - rt.freeMemory()) / 1e6, direct / 1e6);
+  }
+
+  // ANDs the flag bitmaps a word at a time; fills rows if given
+  private int flagQuery(Query q, int[] rows) {
+    int words = (size + 63) >>> 6;
+    int n = 0;
+    for (int w = 0; w < words; w++) {
+      long bits = -1L;
+      if ((q.set & SINGLE_FLAG) != 0)   bits &= single[w];
+      if ((q.clear & SINGLE_FLAG) != 0) bits &= ~single[w];
+      if ((q.set & RICH_FLAG) != 0)     bits &= rich[w];
+      if ((q.clear & RICH_FLAG) != 0)   bits &= ~rich[w];
+      if ((q.set & FEMALE_FLAG) != 0)   bits &= female[w];
+      if ((q.clear & FEMALE_FLAG) != 0) bits &= ~female[w];
+      if (w == words - 1 && (size & 63) != 0)
+	bits &= (1L << size) - 1;  // Past the last row
+      if (rows == null) {
+	n += Long.bitCount(bits);
+      } else {
+	while (bits != 0) {
+	  rows[n++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+	  bits &= bits - 1;
+	}
+      }
+    }
+    return n;
+  }
+
+  // Checks the flags of the rows in the zip range only; fills rows if given
+  private int zipQuery(Query q, int[] rows) {
+    if (size - indexed > Math.max(MIN_TAIL, indexed / 4))
+      index();
+    if (q.zipLow > q.zipHigh)
+      return 0;
+    int mask = q.set | q.clear;
+    int n = 0;
+
+    int from = lowerBound((long) q.zipLow << 32);
+    int to = (q.zipHigh == Integer.MAX_VALUE) ? indexed
+      : lowerBound((long) (q.zipHigh + 1) << 32);
+    int entryMask = mask << 29, entrySet = q.set << 29;
+    for (int i = from; i < to; i++) {
+      int entry = (int) zipIndex[i];
+      if ((entry & entryMask) == entrySet) {
+	if (rows != null)
+	  rows[n] = entry & (MAX_ROWS - 1);
+	n++;
+      }
+    }
+    for (int row = indexed; row < size; row++) {  // Not yet indexed
+      if (zips[row] >= q.zipLow && zips[row] <= q.zipHigh && (flags[row] & mask) == q.set) {
+	if (rows != null)
+	  rows[n] = row;
+	n++;
+      }
+    }
+    return n;
+  }
+
+  // First index entry not below key, or indexed if none
+  private int lowerBound(long key) {
+    int lo = 0, hi = indexed;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (zipIndex[mid] < key)
+	lo = mid + 1;
+      else
+	hi = mid;
+    }
+    return lo;
+  }
+
+  // Sorts the rows added since the last build and merges them into the index
+  private void index() {
+    long[] tail = new long[size - indexed];
+    for (int row = indexed; row < size; row++)
+      tail[row - indexed] = (long) zips[row] << 32 | ((flags[row] << 29 | row) & 0xFFFFFFFFL);
+    Arrays.sort(tail);
+
+    long[] merged = new long[size];
+    int i = 0, j = 0, k = 0;
+    while (i < indexed && j < tail.length)
+      merged[k++] = (zipIndex[i] <= tail[j]) ? zipIndex[i++] : tail[j++];
+    while (i < indexed)
+      merged[k++] = zipIndex[i++];
+    while (j < tail.length)
+      merged[k++] = tail[j++];
+    zipIndex = merged;
+    indexed = size;
+  }
+}
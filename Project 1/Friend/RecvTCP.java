@@ -1,15 +1,29 @@
 import java.io.*;   // for Input/OutputStream
 import java.net.*;  // for Socket and ServerSocket
+import java.nio.*;  // for ByteBuffer
+import java.nio.channels.*;  // for ServerSocketChannel and SocketChannel
 
 public class RecvTCP {
 
+  static final int STREAM_BUFFER_SIZE = 256 * 1024;  // Bytes taken per read
+
   public static void main(String args[]) throws Exception {
 
-    if (args.length != 1)  // Test for correct # of args
-      throw new IllegalArgumentException("Parameter(s): <Port>");
+    if (args.length < 1 || (args.length >= 2 && !args[1].equals("stream")))  // Test for correct # of args
+      throw new IllegalArgumentException("Parameter(s): <Port> [stream [offheap] [<Query> ...]]");
 
     int port = Integer.parseInt(args[0]);   // Receiving Port
 	
+    if (args.length >= 2) {  // Decode friends until the sender closes
+      boolean offHeap = args.length >= 3 && args[2].equals("offheap");
+      int first = offHeap ? 3 : 2;
+      FriendStore.Query[] queries = new FriendStore.Query[args.length - first];
+      for (int i = 0; i < queries.length; i++)
+	queries[i] = FriendStore.Query.parse(args[i + first]);
+      stream(port, queries, offHeap);
+      return;
+    }
+
     ServerSocket servSock = new ServerSocket(port);
     Socket clntSock = servSock.accept();
 
@@ -23,4 +37,75 @@ public class RecvTCP {
     clntSock.close();
     servSock.close();
   }
+
+  // Reads large chunks and decodes every whole record in them; a record cut
+  // off at the end of a chunk is kept and completed by the next read. With
+  // queries, keeps the friends in a FriendStore and runs them at the end.
+  // With offHeap, copies every record into a FriendOffHeapStore instead of
+  // decoding it, which needs -XX:MaxDirectMemorySize for tens of millions
+  // of friends on a small heap (see FriendOffHeapStore).
+  static void stream(int port, FriendStore.Query[] queries, boolean offHeap) throws IOException {
+    ServerSocketChannel servChan = ServerSocketChannel.open();
+    servChan.bind(new InetSocketAddress(port));
+    SocketChannel clntChan = servChan.accept();
+
+    FriendDecoder decoder = new FriendDecoderBin();
+    ByteBuffer buf = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+    FriendStore store = (queries.length > 0 && !offHeap) ? new FriendStore() : null;
+    FriendOffHeapStore offHeapStore = offHeap ? new FriendOffHeapStore() : null;
+    Friend last = null;
+    long records = 0, bytes = 0;
+    long start = System.nanoTime();
+    long lastReport = start, lastRecords = 0;
+
+    int n;
+    while ((n = clntChan.read(buf)) != -1) {
+      bytes += n;
+      buf.flip();
+      while (FriendDecoderBin.hasRecord(buf)) {
+	if (offHeapStore != null) {
+	  offHeapStore.add(buf);  // Copied as it arrived; no Friend is made
+	} else {
+	  last = decoder.decode(buf);
+	  if (store != null)
+	    store.add(last);
+	}
+	records++;
+      }
+      buf.compact();
+
+      long now = System.nanoTime();
+      if (now - lastReport >= 1_000_000_000L) {  // Progress once a second
+	System.out.printf("%d Friends, %.0f records/s%n", records,
+			  (records - lastRecords) / ((now - lastReport) / 1e9));
+	lastReport = now;
+	lastRecords = records;
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (buf.position() > 0)
+      System.out.println("Stream ended inside a record (" + buf.position() + " bytes dropped)");
+
+    System.out.printf("Received %d Friends (%d bytes) in %.3f s: %.0f records/s, %.1f MB/s%n",
+		      records, bytes, seconds, records / seconds, bytes / seconds / 1e6);
+    if (offHeapStore != null && offHeapStore.size() > 0)
+      last = offHeapStore.get(offHeapStore.size() - 1);
+    if (last != null) {
+      System.out.println("Last Binary-Encoded Friend");
+      System.out.println(last);
+    }
+    if (store != null) {
+      store.report(queries);
+      System.out.println(FriendStore.memoryInUse());
+    }
+    if (offHeapStore != null) {
+      offHeapStore.report(queries);
+      System.out.printf("%d distinct lastnames, %.1f MB off-heap%n",
+			offHeapStore.lastNames(), offHeapStore.offHeapBytes() / 1e6);
+      System.out.println(FriendStore.memoryInUse());
+    }
+
+    clntChan.close();
+    servChan.close();
+  }
 }
@@ -1,23 +1,45 @@
 import java.net.*;  // for DatagramSocket and DatagramPacket
 import java.io.*;   // for IOException
+import java.nio.*;  // for ByteBuffer
 
 public class RecvUDP {
 
   public static void main(String[] args) throws Exception {
 
-      if (args.length != 1 && args.length != 2)  // Test for correct # of args        
-	  throw new IllegalArgumentException("Parameter(s): <Port> [<encoding>]");
+      // Arguments by position: port, then an optional encoding, then an
+      // optional "batch", which receives batched datagrams until killed,
+      // keeping the friends in a FriendStore (or with "offheap" next, a
+      // FriendOffHeapStore) and reporting any queries that follow
+      int next = 1;
+      String encoding = null;
+      if (args.length > next && !args[next].equals("batch"))
+	  encoding = args[next++];
+      boolean batch = args.length > next;  // Only "batch" can come next
+      if (args.length < 1 || args[0].equals("batch") || (batch && !args[next].equals("batch")))
+	  throw new IllegalArgumentException("Parameter(s): <Port> [<encoding>] [batch [offheap] [<Query> ...]]");
       
       int port = Integer.parseInt(args[0]);   // Receiving Port
       
       DatagramSocket sock = new DatagramSocket(port);  // UDP socket for receiving      
+      if (batch) {
+	boolean offHeap = args.length > next + 1 && args[next + 1].equals("offheap");
+	int first = next + (offHeap ? 2 : 1);
+	FriendStore.Query[] queries = new FriendStore.Query[args.length - first];
+	for (int i = 0; i < queries.length; i++)
+	  queries[i] = FriendStore.Query.parse(args[first + i]);
+	receiveBatches(sock, (encoding != null ? new FriendDecoderBin(encoding) :
+				       new FriendDecoderBin()), queries,
+		       (!offHeap ? null : encoding != null ? new FriendOffHeapStore(encoding) :
+						      new FriendOffHeapStore()));
+	return;
+      }
       DatagramPacket packet = new DatagramPacket(new byte[1024],1024);
       sock.receive(packet);
       
       // Receive binary-encoded friend                              
       // FriendDecoder decoder = new FriendDecoderBin();
-      FriendDecoder decoder = (args.length == 2 ?   // Which encoding              
-				  new FriendDecoderBin(args[1]) :
+      FriendDecoder decoder = (encoding != null ?   // Which encoding              
+				  new FriendDecoderBin(encoding) :
 				  new FriendDecoderBin() );
 
 
@@ -28,4 +50,76 @@ public class RecvUDP {
       
       sock.close();
   }
+
+  // Unpacks every friend in each datagram (Count (2) | Friend | Friend | ...),
+  // reusing one packet, buffer and decoder, and reports the rate once a second.
+  // Given an offHeap store, copies the records into it instead of decoding them.
+  static void receiveBatches(DatagramSocket sock, FriendDecoder decoder,
+			     FriendStore.Query[] queries, FriendOffHeapStore offHeap)
+    throws IOException {
+    byte[] datagram = new byte[FriendBinConst.MAX_WIRE_LENGTH];
+    DatagramPacket packet = new DatagramPacket(datagram, datagram.length);
+    ByteBuffer buf = ByteBuffer.wrap(datagram);
+    sock.setReceiveBufferSize(4 * 1024 * 1024);  // Ride out bursts between reports
+    sock.setSoTimeout(1000);  // Report the tail of a burst even if nothing follows
+    FriendStore store = (queries.length > 0 && offHeap == null) ? new FriendStore() : null;
+    Friend last = null;
+    long records = 0, datagrams = 0, bad = 0;
+    long lastReport = System.nanoTime(), lastRecords = 0, lastDatagrams = 0;
+
+    System.out.println("Receiving batched Friends on " + sock.getLocalPort() + "...");
+    while (true) {
+      boolean idle = false;
+      packet.setLength(datagram.length);
+      try {
+	sock.receive(packet);
+	buf.clear().limit(packet.getLength());
+	datagrams++;
+	int count = buf.getShort() & 0xFFFF;
+	for (int i = 0; i < count; i++) {
+	  if (offHeap != null) {
+	    offHeap.add(buf);  // Copied as it arrived; no Friend is made
+	  } else {
+	    last = decoder.decode(buf);
+	    if (store != null)
+	      store.add(last);
+	  }
+	  records++;
+	}
+	if (buf.hasRemaining())
+	  throw new IOException("bytes left after " + count + " friends");
+      } catch (SocketTimeoutException e) {
+	idle = true;  // Fall through to the report
+      } catch (IOException | BufferUnderflowException e) {
+	bad++;
+	System.out.println("Bad datagram from " + packet.getSocketAddress() + ": " + e);
+      }
+
+      long now = System.nanoTime();
+      if (now - lastReport >= 1_000_000_000L && datagrams > lastDatagrams) {
+	double seconds = (now - lastReport) / 1e9;
+	System.out.printf("%d Friends in %d datagrams (%d bad): %.0f records/s, %.0f datagrams/s%n",
+			  records, datagrams, bad, (records - lastRecords) / seconds,
+			  (datagrams - lastDatagrams) / seconds);
+	if (offHeap != null && offHeap.size() > 0)
+	  last = offHeap.get(offHeap.size() - 1);
+	System.out.println("Last Binary-Encoded Friend");
+	System.out.println(last);
+	if (store != null)
+	  store.report(queries);
+	if (offHeap != null) {
+	  offHeap.report(queries);
+	  System.out.printf("%d distinct lastnames, %.1f MB off-heap%n",
+			    offHeap.lastNames(), offHeap.offHeapBytes() / 1e6);
+	}
+	if (idle && (store != null || offHeap != null))
+	  System.out.println(FriendStore.memoryInUse());  // Collects, so not mid-burst
+	lastReport = now;
+	lastRecords = records;
+	lastDatagrams = datagrams;
+      } else if (datagrams == lastDatagrams) {
+	lastReport = now;  // Rates cover traffic, not idle time
+      }
+    }
+  }
 }
@@ -1,16 +1,27 @@
 import java.io.*;   // for Input/OutputStream
 import java.net.*;  // for Socket
+import java.nio.*;  // for ByteBuffer
+import java.nio.channels.*;  // for SocketChannel
 
 public class SendTCP {
 
+  static final int STREAM_BUFFER_SIZE = 256 * 1024;  // Bytes gathered per write
+  static final String[] LASTNAMES = { "Smith", "Adams", "Nguyen", "Garcia",
+				      "Johnson", "Okafor", "Kowalski", "Li" };
+
   public static void main(String args[]) throws Exception {
 
-    if (args.length != 2)  // Test for correct # of args
-      throw new IllegalArgumentException("Parameter(s): <Destination> <Port>");
+    if (args.length != 2 && args.length != 3)  // Test for correct # of args
+      throw new IllegalArgumentException("Parameter(s): <Destination> <Port> [<Count>]");
 
     InetAddress destAddr = InetAddress.getByName(args[0]);  // Destination address
     int destPort = Integer.parseInt(args[1]);               // Destination port
 
+    if (args.length == 3) {  // Stream <Count> friends over one connection
+      stream(new InetSocketAddress(destAddr, destPort), Long.parseLong(args[2]));
+      return;
+    }
+
     Socket sock = new Socket(destAddr, destPort);
 
     Friend friend = new Friend(1234567890987654L, "John Smith", 
@@ -29,4 +40,53 @@ public class SendTCP {
     sock.close();
 
   }
+
+  // Encodes count friends back-to-back into one large buffer and writes it
+  // each time it fills; the records themselves are the framing
+  static void stream(InetSocketAddress dest, long count) throws IOException {
+    SocketChannel chan = SocketChannel.open(dest);
+    FriendEncoder encoder = new FriendEncoderBin();
+    ByteBuffer buf = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+    Friend friend = new Friend(0, null, (short) 0, 0, false, false, false);
+    long bytes = 0;
+
+    System.out.println("Streaming " + count + " Friends (Binary)");
+    long start = System.nanoTime();
+    for (long i = 0; i < count; i++) {
+      sample(friend, i);
+      try {
+	encoder.encode(friend, buf);
+      } catch (BufferOverflowException e) {  // Full: send it and start over
+	bytes += drain(chan, buf);
+	encoder.encode(friend, buf);
+      }
+    }
+    bytes += drain(chan, buf);
+    chan.shutdownOutput();  // Receiver sees end of stream after the last record
+    double seconds = (System.nanoTime() - start) / 1e9;
+    chan.close();
+
+    System.out.printf("Sent %d Friends (%d bytes) in %.3f s: %.0f records/s, %.1f MB/s%n",
+		      count, bytes, seconds, count / seconds, bytes / seconds / 1e6);
+  }
+
+  // Turns friend into the i-th sample friend, so bulk senders can reuse one
+  static void sample(Friend friend, long i) {
+    friend.ID           = i;
+    friend.lastName     = LASTNAMES[(int) (i % LASTNAMES.length)];
+    friend.streetNumber = (short) (i % 10000);
+    friend.zipCode      = 10000 + (int) (i % 90000);
+    friend.single       = (i & 1) != 0;
+    friend.rich         = (i & 2) != 0;
+    friend.female       = (i & 4) != 0;
+  }
+
+  static int drain(SocketChannel chan, ByteBuffer buf) throws IOException {
+    buf.flip();
+    int n = buf.remaining();
+    while (buf.hasRemaining())
+      chan.write(buf);
+    buf.clear();
+    return n;
+  }
 }
@@ -1,13 +1,17 @@
 import java.net.*;  // for DatagramSocket, DatagramPacket, and InetAddress
 import java.io.*;   // for IOException
+import java.nio.*;  // for ByteBuffer
 
 public class SendUDP {
 
   public static void main(String args[]) throws Exception {
 
-      if (args.length != 2 && args.length != 3)  // Test for correct # of args        
+      // "batch <Count>" at the end sends Count friends packed into datagrams
+      boolean batch = args.length >= 4 && args[args.length - 2].equals("batch");
+      int nargs = batch ? args.length - 2 : args.length;
+      if (nargs != 2 && nargs != 3)  // Test for correct # of args        
 	  throw new IllegalArgumentException("Parameter(s): <Destination>" +
-					     " <Port> [<encoding]");
+					     " <Port> [<encoding] [batch <Count>]");
       
       
       InetAddress destAddr = InetAddress.getByName(args[0]);  // Destination address
@@ -20,10 +24,15 @@ public class SendUDP {
       
       
       // Use the encoding scheme given on the command line (args[2])
-      FriendEncoder encoder = (args.length == 3 ?
+      FriendEncoder encoder = (nargs == 3 ?
 				  new FriendEncoderBin(args[2]) :
 				  new FriendEncoderBin());
       
+      if (batch) {
+	sendBatches(sock, encoder, destAddr, destPort, Long.parseLong(args[nargs + 1]));
+	sock.close();
+	return;
+      }
 
       byte[] codedFriend = encoder.encode(friend); // Encode friend
       
@@ -33,4 +42,49 @@ public class SendUDP {
       
       sock.close();
   }
+
+  // Packs as many friends as fit into each datagram behind a count:
+  //   Count (2) | Friend | Friend | ...
+  static void sendBatches(DatagramSocket sock, FriendEncoder encoder,
+			  InetAddress destAddr, int destPort, long count)
+    throws IOException {
+    byte[] datagram = new byte[FriendBinConst.MAX_WIRE_LENGTH];
+    ByteBuffer buf = ByteBuffer.wrap(datagram);
+    DatagramPacket message = new DatagramPacket(datagram, datagram.length,
+						destAddr, destPort);
+    Friend friend = new Friend(0, null, (short) 0, 0, false, false, false);
+    long datagrams = 0;
+    int inDatagram = 0;
+
+    buf.position(FriendBinConst.COUNT_LEN);
+    long start = System.nanoTime();
+    for (long i = 0; i < count; i++) {
+      SendTCP.sample(friend, i);
+      try {
+	encoder.encode(friend, buf);
+      } catch (BufferOverflowException e) {  // Full: send it and start the next
+	send(sock, message, buf, inDatagram);
+	datagrams++;
+	inDatagram = 0;
+	encoder.encode(friend, buf);
+      }
+      inDatagram++;
+    }
+    if (inDatagram > 0) {
+      send(sock, message, buf, inDatagram);
+      datagrams++;
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.printf("Sent %d Friends in %d datagrams (%.1f per datagram) in %.3f s: %.0f records/s%n",
+		      count, datagrams, (double) count / datagrams, seconds, count / seconds);
+  }
+
+  static void send(DatagramSocket sock, DatagramPacket message, ByteBuffer buf,
+		   int inDatagram) throws IOException {
+    buf.putShort(0, (short) inDatagram);
+    message.setLength(buf.position());
+    sock.send(message);
+    buf.position(FriendBinConst.COUNT_LEN);
+  }
 }
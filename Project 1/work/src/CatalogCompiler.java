@@ -0,0 +1,20 @@
+/**
+ * CatalogCompiler.java
+ * Compiles data.csv once into the binary catalog format that the servers map with -Dcatalog=<file>.cat
+ * @author Jordan Lee
+ */
+
+public class CatalogCompiler {
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Parameter(s): <CSV File> <Binary File>");
+        }
+        if (!args[1].endsWith(Catalog.BINARY_SUFFIX)) {
+            throw new IllegalArgumentException("Binary file name must end in " + Catalog.BINARY_SUFFIX);
+        }
+
+        Catalog catalog = Catalog.loadCSV(args[0]);
+        catalog.writeBinary(args[1]);
+        System.out.println("Compiled " + catalog.size() + " item(s) from " + args[0] + " into " + args[1]);
+    }
+}
@@ -0,0 +1,136 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Jumbo orders: TCP orders longer than a 16-bit TML can describe (8,190 lines), priced while they
+ * stream in. Like a fragmented message in the UDP protocol, a jumbo request has MARKER (0xFFFE) in
+ * place of TML and is followed by the normal body, ended by the usual terminator:
+ *   Request # (2) | 0xFFFE (2) | Q1 (2) | C1 (2) | ... | 0xFFFF (2)
+ * The server answers with the header straight away and then with each chunk of up to CHUNK_LINES
+ * lines as soon as it is priced, so TC can only follow the last line, as a trailer. It is 8 bytes,
+ * since an order of millions of lines can overflow an int:
+ *   Request # (2) | 0xFFFE (2) | L1 (2) | D1 (L1) | CS1 (2) | Q1 (2) | ... | 0xFFFF (2) | TC (8)
+ * Unknown codes are skipped, as in the normal response. Memory per connection is fixed and the first
+ * response line goes out after at most one chunk, however long the order is.
+ *
+ * A client opens jumbo mode with HELLO, a bare header Request # (2) | 0xFFFD (2). Servers that know
+ * jumbo orders echo it back; older ones treat it as a frame with a bad TML and reply with the normal
+ * error Request # | 0xFFFF, and the connection stays usable for normal requests either way. A server
+ * only takes MARKER as a jumbo order on a connection that has sent HELLO; anywhere else it is a bad
+ * TML like any other and gets the error response.
+ *
+ * One per connection, reused for each jumbo order on it. Not thread-safe.
+ */
+public class JumboOrder {
+    public static final short MARKER = (short) 0xFFFE;
+    public static final short HELLO = (short) 0xFFFD;
+    public static final int TRAILER_SIZE = 2 + 8; // 0xFFFF | TC
+    static final int CHUNK_LINES = 1024;            // Lines priced together, and at most held back
+
+    private final ByteBuffer chunk = ByteBuffer.allocate(4 + CHUNK_LINES * 4 + 2); // A frame RequestView reads
+    private final RequestView lines = new RequestView();
+    private ByteBuffer response = ByteBuffer.allocate(myFirstTCPServer.RESPONSE_BUFFER_SIZE);
+    private Catalog catalog;
+    private boolean active;
+    private long total;
+    private int lineCount;
+    private int unknown;
+    private long bytesReceived;
+    private long bytesSent;
+    private long start;
+
+    /**
+     * Starts a jumbo order priced against one catalog snapshot throughout. Returns the response
+     * header, ready to send; the buffer is reused by the next call.
+     */
+    public ByteBuffer begin(short requestNumber, Catalog catalog) {
+        this.catalog = catalog;
+        active = true;
+        total = 0;
+        lineCount = 0;
+        unknown = 0;
+        bytesReceived = 4;
+        start = System.nanoTime();
+        response.clear();
+        response.putShort(requestNumber);
+        response.putShort(MARKER);
+        response.flip();
+        bytesSent = response.limit();
+        if (WireLog.isEnabled(WireLog.Level.FULL)) {
+            WireLog.info("Jumbo order #" + requestNumber + " started.");
+        }
+        return response;
+    }
+
+    /**
+     * True from begin() until the terminator has been consumed.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Takes the whole lines, and the terminator, from src's position on, prices them and returns the
+     * response bytes to send, which may be none; the buffer is reused by the next call. A partial line
+     * is left in src for the caller to complete, and nothing after the terminator is read. After the
+     * terminator the bytes end with the trailer and the order is no longer active.
+     */
+    public ByteBuffer consume(ByteBuffer src) {
+        response.clear();
+        int from = src.position();
+        while (active) {
+            chunk.clear().position(4);
+            while (chunk.position() < 4 + CHUNK_LINES * 4 && src.remaining() >= 4 && src.getShort(src.position()) != -1) {
+                chunk.putInt(src.getInt()); // Qi | Ci
+            }
+            boolean full = chunk.position() == 4 + CHUNK_LINES * 4;
+            if (chunk.position() > 4) {
+                chunk.putShort((short) -1);
+                price(lines.wrap(chunk, 0, chunk.position()));
+            }
+            if (src.remaining() >= 2 && src.getShort(src.position()) == -1) {
+                src.position(src.position() + 2);
+                finish();
+            } else if (!full) {
+                break; // Needs more bytes
+            }
+        }
+        bytesReceived += src.position() - from;
+        response.flip();
+        bytesSent += response.limit();
+        if (!active) {
+            ServerMetrics.get().recordRequest(lineCount, unknown, (int) Math.min(bytesReceived, Integer.MAX_VALUE),
+                    (int) Math.min(bytesSent, Integer.MAX_VALUE), System.nanoTime() - start);
+        }
+        return response;
+    }
+
+    private void price(RequestView chunkLines) {
+        total += PricingKernel.longTotal(chunkLines, catalog);
+        for (int i = 0; i < chunkLines.getLineCount(); i++) {
+            short code = chunkLines.getCode(i);
+            if (!catalog.contains(code)) {
+                unknown++;
+                continue;
+            }
+            int lineLength = catalog.tcpFragmentLength(code) + 2;
+            if (response.remaining() < lineLength + TRAILER_SIZE) {
+                response = myFirstTCPServer.grow(response, lineLength + TRAILER_SIZE);
+            }
+            catalog.putTcpFragment(code, response);     // Li ; Di ; CSi
+            response.putShort(chunkLines.getQuantity(i)); // Qi
+        }
+        lineCount += chunkLines.getLineCount();
+    }
+
+    private void finish() {
+        if (response.remaining() < TRAILER_SIZE) {
+            response = myFirstTCPServer.grow(response, TRAILER_SIZE);
+        }
+        response.putShort((short) -1); // 0xFFFF terminator
+        response.putLong(total);       // TC
+        active = false;
+        if (WireLog.isEnabled(WireLog.Level.FULL)) {
+            WireLog.info("Jumbo order priced: " + lineCount + " line(s), TC = " + total + ".");
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Log-linear latency histogram in the style of HdrHistogram.
+ * Values below 128 get exact buckets; above that every power-of-two range is split into 64
+ * buckets, so any recorded value is reported within 1/64 (about 1.6%) of its true value.
+ * Recording is a few shifts and an array increment. It is not thread-safe: give each thread
+ * its own histogram and add() them together at the end.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 64;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS; // Values below this are exact
+    private static final int MAX_MAGNITUDE = 64 - 7;          // Covers every non-negative long
+
+    private final long[] counts = new long[LINEAR_LIMIT + MAX_MAGNITUDE * SUB_BUCKETS];
+    private long totalCount;
+    private long sum;
+    private long max;
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        if (value > max) max = value;
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    private static int indexOf(long value) {
+        int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - 7);
+        if (magnitude == 0) {
+            return (int) value;
+        }
+        return LINEAR_LIMIT + (magnitude - 1) * SUB_BUCKETS + (int) ((value >>> magnitude) - SUB_BUCKETS);
+    }
+
+    /**
+     * Highest value that falls in the same bucket as index.
+     */
+    private static long highestValueAt(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int magnitude = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return (subBucket << magnitude) + (1L << magnitude) - 1;
+    }
+
+    /**
+     * Returns the value at or below which the given percentage (0-100) of recorded values fall.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public double getMean() {
+        return (totalCount == 0) ? 0 : (double) sum / totalCount;
+    }
+
+    public long getMax() {
+        return max;
+    }
+}
@@ -0,0 +1,390 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Headless load generator shared by the order clients.
+ * Runs a number of concurrent connections, each sending orders back-to-back, until a duration or
+ * request count is reached, then reports throughput and the latency distribution. The transport is
+ * supplied by the client through Connection.
+ *
+ * By default each connection has one request outstanding. "window <N>" keeps up to N in flight per
+ * connection on transports that can pipeline; a list such as "window 1,4,16" runs the test once per
+ * window size and ends with a table comparing them.
+ *
+ * Orders come either from a seed (random orders, reproducible) or from a workload file with one
+ * order per line written as whitespace-separated quantity,code pairs, e.g. "2,1 3,5 1,9".
+ */
+public class LoadGenerator {
+    public static final String USAGE = "load <Connections> <Seconds>s | <Requests> [<Seed> | <Workload File>]"
+            + " [window <N>[,<N>...]]";
+
+    private static final int GENERATED_ORDERS = 1024; // Distinct orders cycled through when using a seed
+    private static final int MAX_GENERATED_LINES = 10;
+    private static final int MAX_GENERATED_QUANTITY = 100;
+    private static final int MAX_GENERATED_CODE = 128; // Covers the codes in data.csv plus some unknown ones
+
+    /**
+     * One client connection or socket, used by a single load thread.
+     */
+    public interface Connection extends AutoCloseable {
+        /**
+         * Sends the encoded request in request[0, length) and waits for its response.
+         * Returns false if the exchange failed (timeout, error response, mismatched Request #).
+         */
+        boolean exchange(byte[] request, int length) throws IOException;
+
+        /**
+         * True if send and receive are implemented, so several requests can be outstanding at once.
+         */
+        default boolean canPipeline() {
+            return false;
+        }
+
+        /**
+         * Sends the encoded request in request[0, length) without waiting for its response.
+         * Called from one thread while another calls receive.
+         */
+        default void send(byte[] request, int length) throws IOException {
+            throw new UnsupportedOperationException("Transport does not pipeline");
+        }
+
+        /**
+         * Reads the response to the oldest request sent and not yet answered, which should be
+         * requestNumber. Returns false if the exchange failed, as exchange does.
+         */
+        default boolean receive(short requestNumber) throws IOException {
+            throw new UnsupportedOperationException("Transport does not pipeline");
+        }
+
+        @Override
+        void close() throws IOException;
+    }
+
+    public interface ConnectionFactory {
+        Connection open() throws IOException;
+    }
+
+    private final int connections;
+    private final int window;           // Requests in flight per connection
+    private final long durationNanos;   // 0 when bounded by request count
+    private final AtomicLong remaining; // Requests left when bounded by count
+    private final List<List<QuantityCodePair>> orders;
+
+    private LoadGenerator(int connections, int window, long durationNanos, long requests,
+                          List<List<QuantityCodePair>> orders) {
+        this.connections = connections;
+        this.window = window;
+        this.durationNanos = durationNanos;
+        this.remaining = new AtomicLong(requests);
+        this.orders = orders;
+    }
+
+    /**
+     * Parses the load-mode arguments (everything after the word "load") and runs the test.
+     */
+    public static void run(String[] args, int first, ConnectionFactory factory) throws Exception {
+        int n = args.length - first;
+        int[] windows = {1};
+        if (n >= 4 && args[args.length - 2].equals("window")) {
+            String[] sizes = args[args.length - 1].split(",");
+            windows = new int[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                windows[i] = Integer.parseInt(sizes[i]);
+                if (windows[i] < 1) {
+                    throw new IllegalArgumentException("Window must be at least 1");
+                }
+            }
+            n -= 2;
+        }
+        if (n != 2 && n != 3) {
+            throw new IllegalArgumentException("Parameter(s): <Destination> <Port> " + USAGE);
+        }
+        int connections = Integer.parseInt(args[first]);
+        String limit = args[first + 1];
+        long durationNanos = 0;
+        long requests = Long.MAX_VALUE;
+        if (limit.endsWith("s")) {
+            durationNanos = (long) (Double.parseDouble(limit.substring(0, limit.length() - 1)) * 1e9);
+        } else {
+            requests = Long.parseLong(limit);
+        }
+
+        List<List<QuantityCodePair>> orders;
+        if (n == 3 && !args[first + 2].matches("-?\\d+")) {
+            orders = loadWorkload(args[first + 2]);
+        } else {
+            orders = generateWorkload((n == 3) ? Long.parseLong(args[first + 2]) : 1L);
+        }
+
+        if (windows.length == 1) {
+            new LoadGenerator(connections, windows[0], durationNanos, requests, orders).run(factory);
+            return;
+        }
+        Summary[] summaries = new Summary[windows.length];
+        for (int i = 0; i < windows.length; i++) {
+            summaries[i] = new LoadGenerator(connections, windows[i], durationNanos, requests, orders).run(factory);
+            System.out.println();
+        }
+        System.out.println("Window | Requests/s | Lines/s    | p50 (us)  | p99 (us)  | Failed");
+        for (int i = 0; i < windows.length; i++) {
+            Summary s = summaries[i];
+            System.out.printf("%6d | %10.0f | %10.0f | %9.1f | %9.1f | %d%n", windows[i], s.requestsPerSecond,
+                    s.linesPerSecond, s.p50Micros, s.p99Micros, s.failures);
+        }
+    }
+
+    static List<List<QuantityCodePair>> generateWorkload(long seed) {
+        Random rand = new Random(seed);
+        List<List<QuantityCodePair>> orders = new ArrayList<>();
+        for (int i = 0; i < GENERATED_ORDERS; i++) {
+            int lines = 1 + rand.nextInt(MAX_GENERATED_LINES);
+            List<QuantityCodePair> order = new ArrayList<>();
+            for (int j = 0; j < lines; j++) {
+                order.add(randomLine(rand));
+            }
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    /**
+     * One generated order line: a quantity of 1-100 and a code that is usually in data.csv.
+     */
+    static QuantityCodePair randomLine(Random rand) {
+        return new QuantityCodePair((short) (1 + rand.nextInt(MAX_GENERATED_QUANTITY)),
+                (short) rand.nextInt(MAX_GENERATED_CODE));
+    }
+
+    static List<List<QuantityCodePair>> loadWorkload(String fileName) throws IOException {
+        List<List<QuantityCodePair>> orders = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                List<QuantityCodePair> order = new ArrayList<>();
+                for (String pair : line.split("\\s+")) {
+                    String[] parts = pair.split(",", 2);
+                    if (parts.length < 2) {
+                        throw new IOException("Bad quantity,code pair '" + pair + "' in " + fileName);
+                    }
+                    order.add(new QuantityCodePair(Short.parseShort(parts[0]), Short.parseShort(parts[1])));
+                }
+                orders.add(order);
+            }
+        }
+        if (orders.isEmpty()) {
+            throw new IOException("Workload file " + fileName + " has no orders");
+        }
+        return orders;
+    }
+
+    private static final class Result {
+        final LatencyHistogram latency = new LatencyHistogram();
+        long lines;
+        long failures;
+    }
+
+    /**
+     * One run's figures, for the table comparing window sizes.
+     */
+    private static final class Summary {
+        double requestsPerSecond;
+        double linesPerSecond;
+        double p50Micros;
+        double p99Micros;
+        long failures;
+    }
+
+    private Summary run(ConnectionFactory factory) throws Exception {
+        // Encode every order once; each thread copies one into its own buffer and patches the Request #
+        List<byte[]> templates = new ArrayList<>();
+        int longest = 0;
+        for (List<QuantityCodePair> order : orders) {
+            templates.add(RequestView.encode(0, order));
+            longest = Math.max(longest, templates.get(templates.size() - 1).length);
+        }
+        int bufferSize = longest;
+
+        System.out.println("Load test: " + connections + " connection(s), " + orders.size() + " distinct order(s), "
+                + (durationNanos > 0 ? (durationNanos / 1_000_000_000.0) + " s" : remaining.get() + " request(s)")
+                + (window > 1 ? ", up to " + window + " request(s) in flight per connection" : ""));
+
+        List<Future<Result>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        long deadline = start + durationNanos;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < connections; c++) {
+                int seed = c;
+                futures.add(executor.submit(() -> (window > 1)
+                        ? drivePipelined(factory, templates, seed, deadline)
+                        : drive(factory, templates, bufferSize, seed, deadline)));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        LatencyHistogram latency = new LatencyHistogram();
+        long lines = 0;
+        long failures = 0;
+        for (Future<Result> f : futures) {
+            Result r = f.get();
+            latency.add(r.latency);
+            lines += r.lines;
+            failures += r.failures;
+        }
+        return report(latency, lines, failures, elapsed);
+    }
+
+    private Result drive(ConnectionFactory factory, List<byte[]> templates, int bufferSize, int seed, long deadline)
+            throws IOException {
+        Result result = new Result();
+        Random rand = new Random(seed);
+        int requestNumber = rand.nextInt(1000) + 1000;
+        int next = rand.nextInt(templates.size());
+        byte[] request = new byte[bufferSize];
+
+        try (Connection connection = factory.open()) {
+            while (durationNanos > 0 ? System.nanoTime() < deadline : remaining.getAndDecrement() > 0) {
+                byte[] template = templates.get(next);
+                System.arraycopy(template, 0, request, 0, template.length);
+                request[0] = (byte) (requestNumber >> 8);
+                request[1] = (byte) requestNumber;
+
+                long sent = System.nanoTime();
+                boolean ok = connection.exchange(request, template.length);
+                long rtt = System.nanoTime() - sent;
+                if (ok) {
+                    result.latency.record(rtt);
+                    result.lines += (template.length - 6) / 4;
+                } else {
+                    result.failures++;
+                }
+
+                requestNumber++;
+                next = (next + 1 == templates.size()) ? 0 : next + 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Keeps up to window requests in flight on one connection: this thread sends while a second one
+     * reads the responses, which arrive in the order the requests were sent. A request's send time
+     * and line count wait in a ring of window slots until its response is read; the two semaphores
+     * hand each slot from one thread to the other. If the reader fails it records the cause and frees
+     * every slot, and the sender stops at its next acquire; if the sender fails, the reader is
+     * interrupted and joined once the connection is closed.
+     */
+    private Result drivePipelined(ConnectionFactory factory, List<byte[]> templates, int seed, long deadline)
+            throws Exception {
+        Result result = new Result();
+        Random rand = new Random(seed);
+        int firstNumber = rand.nextInt(1000) + 1000;
+        int next = rand.nextInt(templates.size());
+        Semaphore free = new Semaphore(window);  // Slots the sender may fill
+        Semaphore unread = new Semaphore(0);     // Requests sent and not yet answered, plus one when done
+        long[] sentAt = new long[window];
+        int[] lineCounts = new int[window];
+        long[] sent = new long[1];
+        boolean[] done = new boolean[1];
+        AtomicReference<Exception> failure = new AtomicReference<>(); // Why the reader stopped early
+        Thread reader = null;
+        boolean finished = false;
+
+        try (Connection connection = factory.open()) {
+            if (!connection.canPipeline()) {
+                throw new IllegalArgumentException("This transport cannot keep more than one request in flight");
+            }
+            reader = Thread.ofVirtual().start(() -> {
+                try {
+                    for (long received = 0; ; received++) {
+                        unread.acquire();
+                        if (done[0] && received == sent[0]) {
+                            return;
+                        }
+                        int slot = (int) (received % window);
+                        boolean ok = connection.receive((short) (firstNumber + received));
+                        long rtt = System.nanoTime() - sentAt[slot];
+                        if (ok) {
+                            result.latency.record(rtt);
+                            result.lines += lineCounts[slot];
+                        } else {
+                            result.failures++;
+                        }
+                        free.release();
+                    }
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    failure.set(e);
+                    free.release(window); // Don't leave the sender waiting
+                }
+            });
+
+            byte[] request = new byte[templates.stream().mapToInt(t -> t.length).max().orElse(0)];
+            while (durationNanos > 0 ? System.nanoTime() < deadline : remaining.getAndDecrement() > 0) {
+                byte[] template = templates.get(next);
+                System.arraycopy(template, 0, request, 0, template.length);
+                int requestNumber = (int) (firstNumber + sent[0]);
+                request[0] = (byte) (requestNumber >> 8);
+                request[1] = (byte) requestNumber;
+
+                free.acquire(); // Blocks while window requests are already in flight
+                if (failure.get() != null) {
+                    break;
+                }
+                int slot = (int) (sent[0] % window);
+                sentAt[slot] = System.nanoTime();
+                lineCounts[slot] = (template.length - 6) / 4;
+                connection.send(request, template.length);
+                sent[0]++;
+                unread.release();
+
+                next = (next + 1 == templates.size()) ? 0 : next + 1;
+            }
+            done[0] = true;
+            unread.release();
+            reader.join(); // Every response is in, or the reader has failed
+            finished = true;
+        } finally {
+            if (reader != null && !finished) {
+                reader.interrupt(); // The connection is closed by now, so a pending receive fails too
+                reader.join();
+            }
+        }
+        if (failure.get() != null) {
+            System.out.println("ERROR: " + failure.get());
+        }
+        return result;
+    }
+
+    private static Summary report(LatencyHistogram latency, long lines, long failures, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long ok = latency.getTotalCount();
+        System.out.printf("Completed %d request(s) in %.2f s, %d failed%n", ok, seconds, failures);
+        System.out.printf("Throughput: %.0f requests/s, %.0f lines/s%n", ok / seconds, lines / seconds);
+        System.out.printf("Latency (us): mean %.1f | p50 %.1f | p90 %.1f | p99 %.1f | p99.9 %.1f | max %.1f%n",
+                latency.getMean() / 1e3,
+                latency.getValueAtPercentile(50) / 1e3,
+                latency.getValueAtPercentile(90) / 1e3,
+                latency.getValueAtPercentile(99) / 1e3,
+                latency.getValueAtPercentile(99.9) / 1e3,
+                latency.getMax() / 1e3);
+
+        Summary summary = new Summary();
+        summary.requestsPerSecond = ok / seconds;
+        summary.linesPerSecond = lines / seconds;
+        summary.p50Micros = latency.getValueAtPercentile(50) / 1e3;
+        summary.p99Micros = latency.getValueAtPercentile(99) / 1e3;
+        summary.failures = failures;
+        return summary;
+    }
+}
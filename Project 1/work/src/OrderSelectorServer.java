@@ -0,0 +1,227 @@
+/**
+ * OrderSelectorServer.java
+ * Non-blocking server mode for myFirstTCPServer. One acceptor thread hands new connections
+ * round-robin to a small set of selector loops, each multiplexing many persistent clients.
+ * @author Jordan Lee
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class OrderSelectorServer {
+    private static final int INITIAL_BUFFER_SIZE = 512;
+    private static final int MAX_FRAME_SIZE = Short.MAX_VALUE; // TML is a signed 16-bit value
+
+    private final CatalogWatcher catalogs;
+    private final SelectorLoop[] loops;
+
+    public OrderSelectorServer(CatalogWatcher catalogs, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        }
+        this.catalogs = catalogs;
+        this.loops = new SelectorLoop[threads];
+    }
+
+    /**
+     * Binds the listening channel and accepts clients on the calling thread forever.
+     */
+    public void serve(int port) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(Selector.open());
+            Thread t = new Thread(loops[i], "order-selector-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        System.out.println("NIO server listening on " + serverChannel.getLocalAddress()
+                + " with " + loops.length + " selector thread(s)...");
+
+        int next = 0;
+        while (true) {
+            SocketChannel client = serverChannel.accept();
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+            loops[next].register(client);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /**
+     * Per-connection state: accumulates partial request frames and holds unsent response bytes.
+     */
+    private static final class Connection {
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        JumboOrder jumbo; // Created by the connection's first jumbo order
+        boolean helloSeen; // Only a client that said HELLO may send jumbo orders
+
+        Connection() {
+            out.flip(); // out is kept in read mode: position..limit is pending output
+        }
+
+        void enqueue(ByteBuffer bytes) {
+            if (out.capacity() - out.remaining() < bytes.remaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.remaining() + bytes.remaining()))
+                        .order(ByteOrder.BIG_ENDIAN);
+                bigger.put(out);
+                out = bigger;
+            } else {
+                out.compact();
+            }
+            out.put(bytes);
+            out.flip();
+        }
+    }
+
+    private final class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private ByteBuffer response = ByteBuffer.allocate(myFirstTCPServer.RESPONSE_BUFFER_SIZE);
+        private final RequestView request = new RequestView();
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel client) {
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    SocketChannel client;
+                    while ((client = pending.poll()) != null) {
+                        client.register(selector, SelectionKey.OP_READ, new Connection());
+                        ServerMetrics.get().connectionOpened();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        try {
+                            if (key.isReadable()) {
+                                onReadable(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                onWritable(key);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            WireLog.info("Closing connection after error: " + e);
+                            close(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Selector error: " + e);
+                }
+            }
+        }
+
+        private void onReadable(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+
+            int n = channel.read(conn.in);
+            if (n == -1) {
+                close(key);
+                return;
+            }
+
+            // Process every complete frame currently buffered: Request # | TML | (Q,C)* | 0xFFFF
+            // A jumbo order's lines are priced as whole lines arrive (see JumboOrder)
+            conn.in.flip();
+            while (true) {
+                if (conn.jumbo != null && conn.jumbo.isActive()) {
+                    conn.enqueue(conn.jumbo.consume(conn.in));
+                    if (conn.jumbo.isActive()) {
+                        break; // Waiting for the rest of the order
+                    }
+                    continue;
+                }
+                if (conn.in.remaining() < 4) {
+                    break;
+                }
+                int start = conn.in.position();
+                short tml = conn.in.getShort(start + 2);
+                if (tml == JumboOrder.HELLO) {
+                    conn.helloSeen = true;
+                    conn.enqueue(conn.in.duplicate().limit(start + 4)); // Jumbo orders are welcome
+                    conn.in.position(start + 4);
+                    continue;
+                }
+                if (tml == JumboOrder.MARKER && conn.helloSeen) {
+                    if (conn.jumbo == null) {
+                        conn.jumbo = new JumboOrder();
+                    }
+                    conn.enqueue(conn.jumbo.begin(conn.in.getShort(start), catalogs.current()));
+                    conn.in.position(start + 4);
+                    continue;
+                }
+                int frameLength = Math.max(tml, 4);
+                if (conn.in.remaining() < frameLength) {
+                    if (frameLength > conn.in.capacity()) {
+                        ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_FRAME_SIZE, frameLength * 2))
+                                .order(ByteOrder.BIG_ENDIAN);
+                        bigger.put(conn.in);
+                        bigger.flip();
+                        conn.in = bigger;
+                    }
+                    break;
+                }
+                response = myFirstTCPServer.handleRequest(request.wrap(conn.in, start, frameLength), catalogs.current(), response);
+                conn.in.position(start + frameLength);
+                conn.enqueue(response);
+            }
+            conn.in.compact();
+
+            flush(key, conn);
+        }
+
+        private void onWritable(SelectionKey key) throws IOException {
+            flush(key, (Connection) key.attachment());
+        }
+
+        /**
+         * Writes as much pending output as the socket accepts. While output is backed up we stop
+         * reading from this client so a slow reader cannot grow the server's memory without bound.
+         */
+        private void flush(SelectionKey key, Connection conn) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            if (conn.out.hasRemaining()) {
+                channel.write(conn.out);
+            }
+            if (conn.out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            if (key.channel().isOpen()) {
+                ServerMetrics.get().connectionClosed();
+            }
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+                // Already closing
+            }
+        }
+    }
+}
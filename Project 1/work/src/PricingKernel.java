@@ -0,0 +1,85 @@
+/**
+ * Computes TC, the sum of quantity * unit price over every line whose code is in the catalog,
+ * from the request's quantities and unit prices as int arrays (RequestView.getQuantities/getPrices).
+ * The prices are read per line from the catalog's image, which may be a mapped file, so no price
+ * table is kept on the heap.
+ * Line costs always fit an int, but TC is accumulated in a long so that no order, however large,
+ * wraps around; total() then saturates it to the 32-bit TC field.
+ *
+ * The arithmetic runs in VectorPricing, a jdk.incubator.vector kernel, when that class is on the
+ * class path and the JVM was started with --add-modules jdk.incubator.vector. It lives in the vector
+ * directory next to src so the rest of the tree still builds with plain javac; build it with
+ *   javac --add-modules jdk.incubator.vector -cp <classes> -d <classes> vector/VectorPricing.java
+ * Otherwise, or with -Dpricing.scalar=true, the scalar loop below is used. describe() says which
+ * kernel was chosen and why, and the servers print it at startup.
+ */
+public class PricingKernel {
+    /**
+     * Sums quantities[i] * prices[i] for i in [0, count), skipping prices below zero (NO_PRICE).
+     */
+    public interface Kernel {
+        long total(int[] quantities, int[] prices, int count);
+    }
+
+    public static final Kernel SCALAR = PricingKernel::scalarTotal;
+    private static String choice; // Set by load(): the kernel and why it was picked
+    private static final Kernel KERNEL = load();
+
+    /**
+     * TC for request priced against catalog, clamped to the int range.
+     */
+    public static int total(RequestView request, Catalog catalog) {
+        long total = longTotal(request, catalog);
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, total));
+    }
+
+    /**
+     * TC for request priced against catalog, unclamped.
+     */
+    public static long longTotal(RequestView request, Catalog catalog) {
+        return KERNEL.total(request.getQuantities(), request.getPrices(catalog), request.getLineCount());
+    }
+
+    /**
+     * The kernel in use: VectorPricing if it could be loaded, otherwise SCALAR.
+     */
+    public static Kernel kernel() {
+        return KERNEL;
+    }
+
+    /**
+     * The kernel in use and why, e.g. "scalar kernel (-Dpricing.scalar=true)".
+     */
+    public static String describe() {
+        return choice;
+    }
+
+    static long scalarTotal(int[] quantities, int[] prices, int count) {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += quantities[i] * Math.max(prices[i], 0); // NO_PRICE adds nothing
+        }
+        return total;
+    }
+
+    private static Kernel load() {
+        if (Boolean.getBoolean("pricing.scalar")) {
+            choice = "scalar kernel (-Dpricing.scalar=true)";
+            return SCALAR;
+        }
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            choice = "scalar kernel (start with --add-modules jdk.incubator.vector for the vector one)";
+            return SCALAR;
+        }
+        String pkg = PricingKernel.class.getPackageName();
+        try {
+            Kernel kernel = (Kernel) Class.forName(pkg.isEmpty() ? "VectorPricing" : pkg + ".VectorPricing")
+                    .getDeclaredConstructor().newInstance();
+            choice = kernel + " kernel";
+            return kernel;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            choice = "scalar kernel (VectorPricing is not built: " + e + ")";
+            return SCALAR;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Flyweight, reusable view over one received request frame:
+ * Request # (2) | TML (2) | Q1 (2) | C1 (2) | ... | 0xFFFF (2)
+ * Quantity/code pairs are read straight out of the receive buffer by index, so decoding a
+ * request allocates nothing and copies nothing. Pricing kernels that want the lines as primitive
+ * arrays get them from getQuantities and getPrices, decoded once per frame into arrays the view reuses.
+ */
+public class RequestView {
+    private ByteBuffer frame;
+    private int offset;
+    private int length;
+    private int lineCount;
+    private int[] quantities = new int[0];
+    private int[] prices = new int[0];
+    private boolean quantitiesDecoded;
+    private Catalog pricedBy; // Catalog the prices were read from for this frame, null until then
+
+    /**
+     * Client side: builds the byte array to send
+     * Request # (2 bytes) ; TML (2 bytes) ; Q1 (2 bytes) ; C1 (2 bytes) ; Q2 ; C2 ; ... ; 0xFFFF
+     */
+    public static byte[] encode(int requestNumber, List<QuantityCodePair> pairs) {
+        byte[] requestBytes = new byte[2 + 2 + pairs.size() * 4 + 2];
+        requestBytes[0] = (byte) (requestNumber >> 8); // Request # high byte
+        requestBytes[1] = (byte) (requestNumber & 0xFF); // Request # low byte
+        requestBytes[2] = (byte) (requestBytes.length >> 8); // TML high byte
+        requestBytes[3] = (byte) (requestBytes.length & 0xFF); // TML low byte
+        for (int i = 0; i < pairs.size(); i++) {
+            QuantityCodePair pair = pairs.get(i);
+            int offset = 4 + i * 4;
+            requestBytes[offset]     = (byte) (pair.getQuantity() >> 8);
+            requestBytes[offset + 1] = (byte) (pair.getQuantity() & 0xFF);
+            requestBytes[offset + 2] = (byte) (pair.getCode() >> 8);
+            requestBytes[offset + 3] = (byte) (pair.getCode() & 0xFF);
+        }
+        requestBytes[requestBytes.length - 2] = (byte) 0xFF;
+        requestBytes[requestBytes.length - 1] = (byte) 0xFF;
+        return requestBytes;
+    }
+
+    /**
+     * Points this view at the frame stored in buffer[offset, offset + length) and returns it.
+     * Only absolute reads are used, so the buffer's position and limit are left untouched.
+     */
+    public RequestView wrap(ByteBuffer buffer, int offset, int length) {
+        this.frame = buffer;
+        this.offset = offset;
+        this.length = length;
+
+        // Count pairs up to the 0xFFFF terminator or the end of the frame, whichever comes first
+        int count = 0;
+        int pos = offset + 4;
+        int end = offset + length;
+        while (pos + 2 <= end && frame.getShort(pos) != -1 && pos + 4 <= end) {
+            count++;
+            pos += 4;
+        }
+        this.lineCount = count;
+        this.quantitiesDecoded = false;
+        this.pricedBy = null;
+        return this;
+    }
+
+    public short getRequestNumber() {
+        return frame.getShort(offset);
+    }
+
+    public short getTml() {
+        return frame.getShort(offset + 2);
+    }
+
+    /**
+     * Number of quantity/code pairs in the frame.
+     */
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public short getQuantity(int line) {
+        return frame.getShort(offset + 4 + line * 4);
+    }
+
+    public short getCode(int line) {
+        return frame.getShort(offset + 4 + line * 4 + 2);
+    }
+
+    /**
+     * Quantities of every line, widened to ints. Only the first getLineCount() entries belong to
+     * this frame; the array is overwritten by the next frame.
+     */
+    public int[] getQuantities() {
+        if (!quantitiesDecoded) {
+            quantities = grow(quantities);
+            for (int i = 0; i < lineCount; i++) {
+                quantities[i] = getQuantity(i);
+            }
+            quantitiesDecoded = true;
+        }
+        return quantities;
+    }
+
+    /**
+     * Unit price of every line in catalog, NO_PRICE for codes it does not hold. The prices are read
+     * straight out of the catalog's image, so no table of them is built. Only the first
+     * getLineCount() entries belong to this frame; the array is overwritten by the next frame.
+     */
+    public int[] getPrices(Catalog catalog) {
+        if (pricedBy != catalog) {
+            prices = grow(prices);
+            for (int i = 0; i < lineCount; i++) {
+                prices[i] = catalog.getPrice(getCode(i));
+            }
+            pricedBy = catalog;
+        }
+        return prices;
+    }
+
+    private int[] grow(int[] lines) {
+        return (lines.length < lineCount) ? new int[Math.max(lineCount, lines.length * 2)] : lines;
+    }
+
+    /**
+     * Number of bytes in the frame as received.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Buffer holding the frame, which starts at getOffset(). Exposed for logging the raw bytes.
+     */
+    public ByteBuffer getBuffer() {
+        return frame;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+}
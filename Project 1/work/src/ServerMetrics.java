@@ -0,0 +1,198 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide counters and service-time histogram for an order server, published over JMX as
+ * OrderServer:type=Metrics,name=<server> (see ServerMetricsMBean); jconsole or any JMX client can
+ * read them while the server runs.
+ * Counters are LongAdders, so request threads never contend on a shared cache line. Service times
+ * go into one of several striped histograms picked by thread id, each behind its own lock, and
+ * are only merged when read.
+ */
+public final class ServerMetrics implements ServerMetricsMBean {
+    private static final int STRIPES = Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+    private static final ServerMetrics INSTANCE = new ServerMetrics(); // After STRIPES, which the constructor reads
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder errorResponses = new LongAdder();
+    private final LongAdder unknownCodes = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LatencyHistogram[] serviceTimes = new LatencyHistogram[STRIPES];
+
+    // Per-second rates, updated by the sampler thread
+    private volatile double requestsPerSecond;
+    private volatile double linesPerSecond;
+
+    private ServerMetrics() {
+        for (int i = 0; i < STRIPES; i++) {
+            serviceTimes[i] = new LatencyHistogram();
+        }
+    }
+
+    public static ServerMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Publishes the metrics over JMX under the given server name and starts the rate sampler.
+     */
+    public static void register(String server) {
+        try {
+            ObjectName name = new ObjectName("OrderServer:type=Metrics,name=" + server);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+        } catch (JMException e) {
+            System.out.println("ERROR: Could not register metrics MBean: " + e);
+            return;
+        }
+        Thread t = new Thread(INSTANCE::sample, "metrics-sampler");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Records one answered request. serviceNanos covers decoding, pricing and encoding it.
+     */
+    public void recordRequest(int lineCount, int unknownCount, int bytesReceived, int bytesSent, long serviceNanos) {
+        requests.increment();
+        lines.add(lineCount);
+        if (unknownCount > 0) {
+            unknownCodes.add(unknownCount);
+        }
+        bytesIn.add(bytesReceived);
+        bytesOut.add(bytesSent);
+        LatencyHistogram h = serviceTimes[(int) Thread.currentThread().threadId() & (STRIPES - 1)];
+        synchronized (h) {
+            h.record(serviceNanos);
+        }
+    }
+
+    /**
+     * Records a request answered with the Request # | 0xFFFF error response.
+     */
+    public void recordError(int bytesReceived, int bytesSent) {
+        errorResponses.increment();
+        bytesIn.add(bytesReceived);
+        bytesOut.add(bytesSent);
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    private void sample() {
+        long lastRequests = requests.sum();
+        long lastLines = lines.sum();
+        long lastTime = System.nanoTime();
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long nowRequests = requests.sum();
+            long nowLines = lines.sum();
+            long now = System.nanoTime();
+            double seconds = (now - lastTime) / 1e9;
+            requestsPerSecond = (nowRequests - lastRequests) / seconds;
+            linesPerSecond = (nowLines - lastLines) / seconds;
+            lastRequests = nowRequests;
+            lastLines = nowLines;
+            lastTime = now;
+        }
+    }
+
+    private LatencyHistogram serviceTimes() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (LatencyHistogram h : serviceTimes) {
+            synchronized (h) {
+                merged.add(h);
+            }
+        }
+        return merged;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getLines() {
+        return lines.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getErrorResponses() {
+        return errorResponses.sum();
+    }
+
+    @Override
+    public long getUnknownCodes() {
+        return unknownCodes.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    @Override
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    @Override
+    public double getLinesPerSecond() {
+        return linesPerSecond;
+    }
+
+    @Override
+    public double getServiceTimeMeanMicros() {
+        return serviceTimes().getMean() / 1e3;
+    }
+
+    @Override
+    public double getServiceTimeP50Micros() {
+        return serviceTimes().getValueAtPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getServiceTimeP90Micros() {
+        return serviceTimes().getValueAtPercentile(90) / 1e3;
+    }
+
+    @Override
+    public double getServiceTimeP99Micros() {
+        return serviceTimes().getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getServiceTimeP999Micros() {
+        return serviceTimes().getValueAtPercentile(99.9) / 1e3;
+    }
+
+    @Override
+    public double getServiceTimeMaxMicros() {
+        return serviceTimes().getMax() / 1e3;
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * JMX view of ServerMetrics. Counts are totals since the server started; rates cover the last
+ * second; service times are in microseconds over every request served.
+ */
+public interface ServerMetricsMBean {
+    long getRequests();
+
+    long getLines();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getErrorResponses();
+
+    long getUnknownCodes();
+
+    long getActiveConnections();
+
+    double getRequestsPerSecond();
+
+    double getLinesPerSecond();
+
+    double getServiceTimeMeanMicros();
+
+    double getServiceTimeP50Micros();
+
+    double getServiceTimeP90Micros();
+
+    double getServiceTimeP99Micros();
+
+    double getServiceTimeP999Micros();
+
+    double getServiceTimeMaxMicros();
+}
@@ -3,54 +3,219 @@
  * @author Jordan Lee
  */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 public class myFirstTCPClient {
+    /**
+     * Reads one whole response frame:
+     * Request # (2 bytes) ; TML (2 bytes) ; TC (4 bytes) ; L1 (2 bytes) ; D1 (L1 bytes)
+     * CS1 (2 bytes) ; Q1 (2 bytes) ; ... ; 0xFFFF (2 bytes)
+     * TML is unsigned, so a response may be up to 65,534 bytes long.
+     * An error response is just Request # ; TML = 0xFFFF, and is returned as those 4 bytes.
+     */
+    static byte[] readResponse(DataInputStream in) throws IOException {
+        byte[] responseBytes = new byte[4];
+        in.readFully(responseBytes, 0, 4);
+        int responseTml = ((responseBytes[2] & 0xFF) << 8) | (responseBytes[3] & 0xFF);
+        if (responseTml == 0xFFFF) {
+            return responseBytes;
+        }
+        if (responseTml < 8) {
+            throw new IOException("Response TML " + responseTml + " is shorter than its header");
+        }
+
+        responseBytes = Arrays.copyOf(responseBytes, responseTml);
+        in.readFully(responseBytes, 4, responseTml - 4);
+        return responseBytes;
+    }
+
+    static short getRequestNumber(byte[] responseBytes) {
+        return (short) (((responseBytes[0] & 0xFF) << 8) | (responseBytes[1] & 0xFF));
+    }
+
+    static boolean isError(byte[] responseBytes) {
+        return responseBytes.length == 4 && responseBytes[2] == (byte) 0xFF && responseBytes[3] == (byte) 0xFF;
+    }
+
+    /**
+     * Prints the response table and checks the server's TC against the lines.
+     */
+    static void printResponse(byte[] responseBytes) {
+        ByteBuffer respBuffer = ByteBuffer.wrap(responseBytes, 4, responseBytes.length - 4).order(java.nio.ByteOrder.BIG_ENDIAN);
+        int TC = respBuffer.getInt();
+
+        int computedTC = 0;
+        ArrayList<String[]> rows = new ArrayList<>();
+        int itemNum = 1;
+        while (respBuffer.remaining() >= 2) {
+            short L1 = respBuffer.getShort();
+            if (L1 == -1) break; // 0xFFFF terminator
+
+            byte[] nameBytes = new byte[L1];
+            respBuffer.get(nameBytes);
+            String itemName = new String(nameBytes);
+
+            short CS1 = respBuffer.getShort(); // unit price
+            short Q1 = respBuffer.getShort();  // quantity
+
+            int lineCost = CS1 * Q1;
+            computedTC += lineCost;
+
+            rows.add(new String[]{String.valueOf(itemNum++), itemName, "$" + CS1, String.valueOf(Q1), "$" + lineCost});
+        }
+
+        // Print table
+        String fmt = "| %-6s | %-20s | %-9s | %-8s | %-13s |%n";
+        String divider = "+--------+----------------------+-----------+----------+---------------+";
+        System.out.println(divider);
+        System.out.printf(fmt, "Item #", "Description", "Unit Cost", "Quantity", "Cost Per Item");
+        System.out.println(divider);
+        for (String[] row : rows) {
+            System.out.printf(fmt, row[0], row[1], row[2], row[3], row[4]);
+            System.out.println(divider);
+        }
+        System.out.printf(fmt, "", "", "", "Total", "$" + computedTC);
+        System.out.println(divider);
+
+        if (computedTC != TC) {
+            System.out.println("ERROR: Total Cost mismatch! Computed TC = $" + computedTC + " but server sent TC = $" + TC);
+        }
+    }
+
+    /**
+     * Prompts for one order. Returns an empty list when the user submits no pairs.
+     */
+    private static ArrayList<QuantityCodePair> readOrder(Scanner sc) {
+        ArrayList<QuantityCodePair> pairs = new ArrayList<>();
+
+        System.out.println("\nEnter quantity/code pairs. Enter -1 for quantity to submit or quit.");
+        while (true) {
+            System.out.print("Enter quantity: ");
+            short quantity = sc.nextShort();
+            if (quantity == -1) break;
+            if (quantity <= 0) {
+                System.out.println("ERROR: Quantity must be between 0-32767. Please re-enter.");
+                continue;
+            }
+            System.out.print("Enter code: ");
+            short code = sc.nextShort();
+            if (code < 0) {
+                System.out.println("ERROR: Code must be between 0-32767. Please re-enter.");
+                continue;
+            }
+            pairs.add(new QuantityCodePair(quantity, code));
+        }
+        return pairs;
+    }
+
+    /**
+     * Load-mode transport: one persistent socket. exchange keeps one request in flight at a time;
+     * with a load window, send and receive run on separate threads and responses come back in order.
+     */
+    private static final class LoadConnection implements LoadGenerator.Connection {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        LoadConnection(InetAddress addr, int port) throws IOException {
+            socket = new Socket(addr, port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        @Override
+        public boolean exchange(byte[] request, int length) throws IOException {
+            send(request, length);
+            return receive((short) (((request[0] & 0xFF) << 8) | (request[1] & 0xFF)));
+        }
+
+        @Override
+        public boolean canPipeline() {
+            return true;
+        }
+
+        @Override
+        public void send(byte[] request, int length) throws IOException {
+            out.write(request, 0, length);
+            out.flush();
+        }
+
+        @Override
+        public boolean receive(short requestNumber) throws IOException {
+            byte[] responseBytes = readResponse(in);
+            return !isError(responseBytes) && getRequestNumber(responseBytes) == requestNumber;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
     public static void main(String[] args) throws Exception {
-        if (args.length != 2) {
-            throw new IllegalArgumentException("Parameter(s): <Destination> <Port>");
+        if (args.length < 2 || (args.length > 3 && !args[2].equals("load") && !args[2].equals("jumbo"))) {
+            throw new IllegalArgumentException("Parameter(s): <Destination> <Port> [<Window> | jumbo <Lines> [<Seed>] | "
+                    + LoadGenerator.USAGE + "]");
         }
 
         InetAddress addr = InetAddress.getByName(args[0]);
         int port = Integer.parseInt(args[1]);
+        if (args.length > 2 && args[2].equals("load")) {
+            LoadGenerator.run(args, 3, () -> new LoadConnection(addr, port));
+            return;
+        }
+        if (args.length > 2 && args[2].equals("jumbo")) {
+            if (args.length < 4 || args.length > 5) {
+                throw new IllegalArgumentException("Parameter(s): <Destination> <Port> jumbo <Lines> [<Seed>]");
+            }
+            runJumbo(addr, port, Long.parseLong(args[3]), (args.length == 5) ? Long.parseLong(args[4]) : 1L);
+            return;
+        }
+        int window = (args.length == 3) ? Integer.parseInt(args[2]) : 1;
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be at least 1");
+        }
         Socket socket = new Socket(addr, port);
 
+        System.out.println("Client connected to server at " + addr + ":" + port);
+
+        if (window == 1) {
+            runStopAndWait(socket);
+        } else {
+            runPipelined(socket, window);
+        }
+
+        socket.close();
+    }
+
+    /**
+     * Original mode: send one request, wait for its response, repeat.
+     */
+    private static void runStopAndWait(Socket socket) throws IOException {
         DataOutputStream out = new DataOutputStream(socket.getOutputStream());
         DataInputStream in = new DataInputStream(socket.getInputStream());
 
-        System.out.println("Client connected to server at " + addr + ":" + port);
-
         Random rand = new Random();
         Scanner sc = new Scanner(System.in);
         int requestNumber = rand.nextInt(1000) + 1000;// Random starting value between 1000 and 1999
 
         while (true) {
-            ArrayList<QuantityCodePair> pairs = new ArrayList<>();
-
-            System.out.println("\nEnter quantity/code pairs. Enter -1 for quantity to submit or quit.");
-            while (true) {
-                System.out.print("Enter quantity: ");
-                short quantity = sc.nextShort();
-                if (quantity == -1) break;
-                if (quantity <= 0) {
-                    System.out.println("ERROR: Quantity must be between 0-32767. Please re-enter.");
-                    continue;
-                }
-                System.out.print("Enter code: ");
-                short code = sc.nextShort();
-                if (code < 0) {
-                    System.out.println("ERROR: Code must be between 0-32767. Please re-enter.");
-                    continue;
-                }
-                pairs.add(new QuantityCodePair(quantity, code));
-            }
+            ArrayList<QuantityCodePair> pairs = readOrder(sc);
 
             // If no pairs were entered, treat as quit
             if (pairs.isEmpty()) {
@@ -58,104 +223,191 @@ public class myFirstTCPClient {
                 break;
             }
 
-            // Build byte array to send
-            // Request # (2 bytes) ; TML (2 bytes) ; Q1 (2 bytes) ; C1 (2 bytes) ; Q2 ; C2 ; ... ; 0xFFFF
-            byte[] requestBytes = new byte[2 + 2 + pairs.size() * 4 + 2];
-            requestBytes[0] = (byte) (requestNumber >> 8); // Request # high byte
-            requestBytes[1] = (byte) (requestNumber & 0xFF); // Request # low byte
-            requestBytes[2] = (byte) (requestBytes.length >> 8); // TML high byte
-            requestBytes[3] = (byte) (requestBytes.length & 0xFF); // TML low byte
-            for (int i = 0; i < pairs.size(); i++) {
-                QuantityCodePair pair = pairs.get(i);
-                int offset = 4 + i * 4;
-                requestBytes[offset]     = (byte) (pair.getQuantity() >> 8);
-                requestBytes[offset + 1] = (byte) (pair.getQuantity() & 0xFF);
-                requestBytes[offset + 2] = (byte) (pair.getCode() >> 8);
-                requestBytes[offset + 3] = (byte) (pair.getCode() & 0xFF);
-            }
-            requestBytes[requestBytes.length - 2] = (byte) 0xFF;
-            requestBytes[requestBytes.length - 1] = (byte) 0xFF;
+            byte[] requestBytes = RequestView.encode(requestNumber, pairs);
 
             // Log the request being sent
             System.out.println("Sending request #" + requestNumber + " with " + pairs.size() + " pair(s) to server:");
-            System.out.print("Request bytes: ");
-            for (byte b : requestBytes) {
-                System.out.printf("0x%02X ", b);
-            }
-            System.out.println();
+            WireLog.bytes("Request bytes", requestBytes, 0, requestBytes.length);
+            WireLog.flush();
 
             // Send pairs over TCP
             out.write(requestBytes);
             out.flush();
             System.out.println("Sent " + pairs.size() + (pairs.size() > 1 ? " pairs " : " pair ") + "to server.");
 
-            // Wait for server response:
-            // Request # (2 bytes) ; TML (2 bytes) ; TC (4 bytes) ; L1 (2 bytes) ; D1 (L1 bytes)
-            // CS1 (2 bytes) ; Q1 (2 bytes) ; ... ; 0xFFFF (2 bytes)
-            short responseNumber = in.readShort();
-            short responseTml = in.readShort();
-            int TC = in.readInt();
-
-            if (responseTml == -1) {
+            // Wait for server response
+            byte[] responseBytes = readResponse(in);
+            if (isError(responseBytes)) {
                 System.out.println("ERROR: Server responded with TML = -1, indicating a mismatch between TML and byte count.");
                 break;
             }
 
-            byte[] remaining = new byte[responseTml - 8];
-            in.readFully(remaining);
+            // Print entire response in hex
+            WireLog.bytes("Received response", responseBytes, 0, responseBytes.length);
+            WireLog.flush();
 
-            ByteBuffer respBuffer = ByteBuffer.wrap(remaining).order(java.nio.ByteOrder.BIG_ENDIAN);
+            printResponse(responseBytes);
 
-            // Print entire response in hex
-            System.out.print("Received response: ");
-            System.out.printf("0x%02X 0x%02X 0x%02X 0x%02X ", (responseNumber >> 8) & 0xFF, responseNumber & 0xFF,
-                    (responseTml >> 8) & 0xFF, responseTml & 0xFF);
-            System.out.printf("0x%02X 0x%02X 0x%02X 0x%02X ", (TC >> 24) & 0xFF, (TC >> 16) & 0xFF, (TC >> 8) & 0xFF, TC & 0xFF);
-            for (byte b : remaining) {
-                System.out.printf("0x%02X ", b);
-            }
-            System.out.println();
+            requestNumber++;
+        }
+    }
+
+    /**
+     * Jumbo mode: streams one generated order of lineCount lines (see JumboOrder) while this thread
+     * reads the priced lines back as they come, so neither side ever holds the whole order.
+     * Checks the trailer's TC against the lines and reports how soon the first line came back.
+     */
+    private static void runJumbo(InetAddress addr, int port, long lineCount, long seed) throws Exception {
+        Socket socket = new Socket(addr, port);
+        socket.setTcpNoDelay(true);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        short requestNumber = (short) (new Random().nextInt(1000) + 1000);
+
+        // Servers without jumbo orders answer HELLO with the 4-byte error response
+        out.writeShort(requestNumber);
+        out.writeShort(JumboOrder.HELLO);
+        out.flush();
+        in.readShort();
+        if (in.readShort() != JumboOrder.HELLO) {
+            System.out.println("ERROR: Server does not accept jumbo orders.");
+            socket.close();
+            return;
+        }
+        System.out.println("Client connected to server at " + addr + ":" + port + "; sending jumbo order #"
+                + requestNumber + " with " + lineCount + " pair(s).");
 
-            int computedTC = 0;
-            ArrayList<String[]> rows = new ArrayList<>();
-            int itemNum = 1;
-            while (respBuffer.remaining() >= 2) {
-                short L1 = respBuffer.getShort();
-                if (L1 == -1) break; // 0xFFFF terminator
+        long start = System.nanoTime();
+        Thread sender = new Thread(() -> {
+            try {
+                Random rand = new Random(seed);
+                out.writeShort(requestNumber);
+                out.writeShort(JumboOrder.MARKER);
+                for (long i = 0; i < lineCount; i++) {
+                    QuantityCodePair pair = LoadGenerator.randomLine(rand);
+                    out.writeShort(pair.getQuantity());
+                    out.writeShort(pair.getCode());
+                }
+                out.writeShort(-1); // 0xFFFF terminator
+                out.flush();
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.out.println("ERROR: " + e);
+                }
+            }
+        }, "jumbo-sender");
+        sender.start();
 
-                byte[] nameBytes = new byte[L1];
-                respBuffer.get(nameBytes);
-                String itemName = new String(nameBytes);
+        // Request # (2) ; 0xFFFE (2) ; L1 (2) ; D1 (L1) ; CS1 (2) ; Q1 (2) ; ... ; 0xFFFF (2) ; TC (8)
+        short responseNumber = in.readShort();
+        if (responseNumber != requestNumber || in.readShort() != JumboOrder.MARKER) {
+            System.out.println("ERROR: Unexpected response header for jumbo order #" + requestNumber + ".");
+            socket.close();
+            return;
+        }
+        byte[] name = new byte[0xFFFF];
+        long computedTC = 0;
+        long lines = 0;
+        long firstLineNanos = -1;
+        while (true) {
+            int L1 = in.readUnsignedShort();
+            if (L1 == 0xFFFF) break; // 0xFFFF terminator
+            if (firstLineNanos < 0) {
+                firstLineNanos = System.nanoTime() - start;
+            }
+            in.readFully(name, 0, L1);
+            short CS1 = in.readShort(); // unit price
+            short Q1 = in.readShort();  // quantity
+            computedTC += CS1 * Q1;
+            lines++;
+        }
+        long TC = in.readLong();
+        long elapsedNanos = System.nanoTime() - start;
+        sender.join();
+        socket.close();
 
-                short CS1 = respBuffer.getShort(); // unit price
-                short Q1 = respBuffer.getShort();  // quantity
+        System.out.printf("Sent %d pair(s); received %d priced line(s) in %.2f s.%n", lineCount, lines, elapsedNanos / 1e9);
+        if (firstLineNanos >= 0) {
+            System.out.printf("First line came back after %.1f ms.%n", firstLineNanos / 1e6);
+        }
+        System.out.println("Total: $" + computedTC);
+        if (computedTC != TC) {
+            System.out.println("ERROR: Total Cost mismatch! Computed TC = $" + computedTC + " but server sent TC = $" + TC);
+        }
+    }
 
-                int lineCost = CS1 * Q1;
-                computedTC += lineCost;
+    /**
+     * Pipelined mode: keeps up to window requests in flight on the one socket. A reader thread
+     * matches each response back to its order by Request #, so throughput scales with the window
+     * rather than being capped at one order per round trip.
+     */
+    private static void runPipelined(Socket socket, int window) throws Exception {
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        Semaphore slots = new Semaphore(window);
+        ConcurrentHashMap<Short, Integer> outstanding = new ConcurrentHashMap<>(); // Request # -> pair count
 
-                rows.add(new String[]{String.valueOf(itemNum++), itemName, "$" + CS1, String.valueOf(Q1), "$" + lineCost});
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    byte[] responseBytes = readResponse(in);
+                    short responseNumber = getRequestNumber(responseBytes);
+                    Integer pairCount = outstanding.remove(responseNumber);
+                    if (pairCount == null) {
+                        System.out.println("ERROR: Received response #" + responseNumber + " that matches no outstanding request.");
+                        continue;
+                    }
+                    synchronized (System.out) {
+                        if (isError(responseBytes)) {
+                            System.out.println("ERROR: Server responded to request #" + responseNumber
+                                    + " with TML = -1, indicating a mismatch between TML and byte count.");
+                        } else {
+                            WireLog.bytes("Received response", responseBytes, 0, responseBytes.length);
+                            WireLog.flush();
+                            System.out.println("Response for request #" + responseNumber + " (" + pairCount + " pair(s)):");
+                            printResponse(responseBytes);
+                        }
+                    }
+                    slots.release();
+                }
+            } catch (EOFException e) {
+                // Server closed the connection
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.out.println("ERROR: " + e);
+                }
+            } finally {
+                slots.release(window); // Nothing more will arrive; don't leave the sender waiting
             }
+        }, "response-reader");
+        reader.setDaemon(true);
+        reader.start();
 
-            // Print table
-            String fmt = "| %-6s | %-20s | %-9s | %-8s | %-13s |%n";
-            String divider = "+--------+----------------------+-----------+----------+---------------+";
-            System.out.println(divider);
-            System.out.printf(fmt, "Item #", "Description", "Unit Cost", "Quantity", "Cost Per Item");
-            System.out.println(divider);
-            for (String[] row : rows) {
-                System.out.printf(fmt, row[0], row[1], row[2], row[3], row[4]);
-                System.out.println(divider);
+        Random rand = new Random();
+        Scanner sc = new Scanner(System.in);
+        int requestNumber = rand.nextInt(1000) + 1000;// Random starting value between 1000 and 1999
+
+        while (true) {
+            ArrayList<QuantityCodePair> pairs = readOrder(sc);
+            if (pairs.isEmpty()) {
+                System.out.println("No pairs entered. Waiting for " + outstanding.size() + " outstanding response(s), then disconnecting.");
+                break;
             }
-            System.out.printf(fmt, "", "", "", "Total", "$" + computedTC);
-            System.out.println(divider);
 
-            if (computedTC != TC) {
-                System.out.println("ERROR: Total Cost mismatch! Computed TC = $" + computedTC + " but server sent TC = $" + TC);
+            byte[] requestBytes = RequestView.encode(requestNumber, pairs);
+            slots.acquire(); // Blocks while window requests are already in flight
+            outstanding.put((short) requestNumber, pairs.size());
+            out.write(requestBytes);
+            out.flush();
+            synchronized (System.out) {
+                WireLog.bytes("Request bytes", requestBytes, 0, requestBytes.length);
+                System.out.println("Sent request #" + requestNumber + " with " + pairs.size() + " pair(s); "
+                        + outstanding.size() + " in flight.");
             }
 
             requestNumber++;
         }
 
-        socket.close();
+        slots.acquire(window); // Every response is in
     }
 }
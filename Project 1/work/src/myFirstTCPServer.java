@@ -3,164 +3,266 @@
  * @author Jordan Lee
  */
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class myFirstTCPServer {
-    private static Map<Short, Item> loadCSV() throws IOException {
-        Map<Short, Item> catalog = new HashMap<>();
-        try (BufferedReader br = new BufferedReader(new FileReader("data.csv"))) {
-            String line;
-            boolean firstLine = true;
-            while ((line = br.readLine()) != null) {
-                if (firstLine) {
-                    // Strip UTF-8 BOM if present
-                    if (line.startsWith("\uFEFF")) {
-                        line = line.substring(1);
-                    }
-                    firstLine = false;
-                }
-                String[] parts = line.split(",", 3);
-                if (parts.length < 3) continue;
-                short id = Short.parseShort(parts[0].trim());
-                String name = parts[1].trim();
-                short price = Short.parseShort(parts[2].trim());
-                catalog.put(id, new Item(id, name, price));
-            }
+    static final int RESPONSE_BUFFER_SIZE = 1024; // Initial size of each thread's reusable response buffer
+    static final int MAX_RESPONSE_SIZE = 0xFFFE;   // Response TML is unsigned 16-bit, and 0xFFFF means error
+
+    /**
+     * Decodes one complete request frame, prices it against the catalog and encodes the response
+     * into the caller's reusable buffer. Returns the flipped buffer, which is a larger replacement
+     * if the response did not fit; callers should keep the returned buffer for the next request.
+     * A response longer than MAX_RESPONSE_SIZE cannot be framed, so the request gets the error
+     * response instead; orders that large must be sent as jumbo orders (see JumboOrder).
+     */
+    static ByteBuffer handleRequest(RequestView request, Catalog catalog, ByteBuffer response) {
+        long start = System.nanoTime();
+        short requestNumber = request.getRequestNumber();
+        response.clear();
+
+        // Handle invalid TML (must be at least 6 bytes: req# + TML + terminator)
+        if (request.getTml() < 6) {
+            response.putShort(requestNumber);
+            response.putShort((short) -1);
+            response.flip();
+            WireLog.info("ERROR: TML does not match byte count. Sent error response.");
+            ServerMetrics.get().recordError(request.getLength(), response.limit());
+            return response;
         }
-        return catalog;
-    }
 
-    public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
-            throw new IllegalArgumentException("Parameter(s): <Port>");
+        // Pairs are read in place: Request # (2) | TML (2) | Q1 (2) | C1 (2) | ... | 0xFFFF (2)
+        if (WireLog.isEnabled(WireLog.Level.FULL)) {
+            WireLog.info("Received " + request.getLineCount() + " pair(s):");
         }
+        WireLog.bytes("Request bytes", request.getBuffer(), request.getOffset(), request.getLength());
 
-        // Load catalog before accepting connections
-        Map<Short, Item> catalog = loadCSV();
+        // Build response, skipping codes that are not in the catalog:
+        // Request # (2) ; TML (2) ; TC (4) ; L1 (2) ; D1 (L1) ; CS1 (2) ; Q1 (2) ; ... ; 0xFFFF (2)
+        // TML and TC are filled in once every line has been copied.
+        response.putShort(requestNumber);
+        response.putShort((short) 0);
+        response.putInt(0);
+        int unknown = 0;
+        for (int i = 0; i < request.getLineCount(); i++) {
+            short quantity = request.getQuantity(i);
+            short code = request.getCode(i);
+            if (!catalog.contains(code)) {
+                unknown++;
+                continue;
+            }
 
-        int port = Integer.parseInt(args[0]);
-        ServerSocket serverSocket = new ServerSocket(port);
-        System.out.println("Server listening on port " + port + "..." + serverSocket.getLocalSocketAddress());
+            int lineLength = catalog.tcpFragmentLength(code) + 2;
+            if (response.remaining() < lineLength + 2) {
+                response = grow(response, lineLength + 2);
+            }
+            catalog.putTcpFragment(code, response); // L1 ; D1 ; CS1
+            response.putShort(quantity);            // Q1
+        }
+        response.putShort((short) -1); // 0xFFFF terminator
+        if (response.position() > MAX_RESPONSE_SIZE) {
+            int length = response.position();
+            response.clear();
+            response.putShort(requestNumber);
+            response.putShort((short) -1);
+            response.flip();
+            if (WireLog.isEnabled(WireLog.Level.SUMMARY)) {
+                WireLog.info("ERROR: Response of " + length + " bytes is too long for TML; send it as a jumbo order."
+                        + " Sent error response.");
+            }
+            ServerMetrics.get().recordError(request.getLength(), response.limit());
+            return response;
+        }
+        response.putShort(2, (short) response.position()); // Unsigned: up to MAX_RESPONSE_SIZE
+        response.putInt(4, PricingKernel.total(request, catalog)); // TC = sum of quantity * price
+        response.flip();
 
-        Socket socket = serverSocket.accept();
-        System.out.println("Client connected: " + socket.getInetAddress() + ":" + socket.getPort());
+        WireLog.bytes("Response bytes", response, 0, response.limit());
+        ServerMetrics.get().recordRequest(request.getLineCount(), unknown, request.getLength(), response.limit(),
+                System.nanoTime() - start);
+
+        return response;
+    }
 
-        DataInputStream in = new DataInputStream(socket.getInputStream());
+    static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed))
+                .order(ByteOrder.BIG_ENDIAN);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * Blocking read/price/write loop for one client socket. Runs until the client disconnects.
+     */
+    static void serveConnection(Socket socket, CatalogWatcher catalogs) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        ByteBuffer frame = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+        ByteBuffer response = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+        RequestView request = new RequestView();
+        JumboOrder jumbo = null;
+        boolean helloSeen = false; // Only a client that said HELLO may send jumbo orders
+        ServerMetrics.get().connectionOpened();
 
         try {
             while (true) {
                 // Read the 4-byte header first to get TML
-                byte[] header = new byte[4];
-                in.readFully(header);
-                short requestNumber = (short) (((header[0] & 0xFF) << 8) | (header[1] & 0xFF));
-                short tml = (short) (((header[2] & 0xFF) << 8) | (header[3] & 0xFF));
-
-                // Read the rest of the message based on TML
-                byte[] rest = new byte[tml - 4];
-                in.readFully(rest);
-
-                // Combine into one buffer for parsing
-                byte[] bytes = new byte[tml];
-                System.arraycopy(header, 0, bytes, 0, 4);
-                System.arraycopy(rest, 0, bytes, 4, rest.length);
-
-                // Handle invalid TML (must be at least 6 bytes: req# + TML + terminator)
-                if (tml < 6) {
-                    byte[] errorResponse = new byte[4];
-                    errorResponse[0] = (byte) (requestNumber >> 8);
-                    errorResponse[1] = (byte) (requestNumber & 0xFF);
-                    errorResponse[2] = (byte) (0xFF);
-                    errorResponse[3] = (byte) (0xFF);
-                    socket.getOutputStream().write(errorResponse);
-                    System.out.println("ERROR: TML does not match byte count. Sent error response.");
+                in.readFully(frame.array(), 0, 4);
+                short tml = frame.getShort(2);
+                if (tml == JumboOrder.HELLO) {
+                    helloSeen = true;
+                    out.write(frame.array(), 0, 4); // Jumbo orders are welcome
+                    out.flush();
                     continue;
                 }
-
-                // Decode pairs: Request # (2) | TML (2) | Q1 (2) | C1 (2) | ... | 0xFFFF (2)
-                ArrayList<QuantityCodePair> pairs = new ArrayList<>();
-                ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
-                buffer.getShort(); // skip request number
-                buffer.getShort(); // skip TML
-
-                while (buffer.remaining() >= 2) {
-                    short quantity = buffer.getShort();
-                    if (quantity == -1) break; // 0xFFFF terminator
-                    if (buffer.remaining() < 2) break;
-                    short code = buffer.getShort();
-                    pairs.add(new QuantityCodePair(quantity, code));
-                }
-
-                System.out.println("Received " + pairs.size() + " pair(s):");
-
-                // Log request byte-by-byte
-                System.out.print("Request bytes: ");
-                for (byte b : bytes) {
-                    System.out.printf("0x%02X ", b);
-                }
-                System.out.println();
-
-                // Look up each code, compute line cost = quantity * price
-                ArrayList<Short> costs = new ArrayList<>();
-                for (QuantityCodePair pair : pairs) {
-                    Item item = catalog.get(pair.getCode());
-                    if (item != null) {
-                        short cost = (short) (pair.getQuantity() * item.getPrice());
-                        costs.add(cost);
+                if (tml == JumboOrder.MARKER && helloSeen) {
+                    if (jumbo == null) {
+                        jumbo = new JumboOrder();
                     }
+                    streamJumbo(frame.getShort(0), in, out, jumbo, catalogs.current());
+                    continue;
                 }
+                int frameLength = Math.max(tml, 4);
 
-                // Build response:
-                // Request # (2) ; TML (2) ; TC (4) ; L1 (2) ; D1 (L1) ; CS1 (2) ; Q1 (2) ; ... ; 0xFFFF (2)
-                int responseTml = 2 + 2 + 4; // requestNumber + TML + TC
-                for (QuantityCodePair quantityCodePair : pairs) {
-                    Item item = catalog.get(quantityCodePair.getCode());
-                    if (item != null) {
-                        responseTml += 2 + item.getName().getBytes().length + 2 + 2; // L1 + D1 + CS1 + Q1
-                    }
-                }
-                responseTml += 2; // 0xFFFF terminator
-                ByteBuffer response = ByteBuffer.allocate(responseTml).order(ByteOrder.BIG_ENDIAN);
-                response.putShort(requestNumber);
-                response.putShort((short) responseTml);
-                int TC = costs.stream().filter(c -> c > 0).mapToInt(c -> c).sum();
-                response.putInt(TC);
-                for (int i = 0; i < costs.size(); i++) {
-                    QuantityCodePair pair = pairs.get(i);
-                    Item item = catalog.get(pair.getCode());
-                    response.putShort((short) item.getName().length()); // L1
-                    response.put(item.getName().getBytes()); // D1
-                    response.putShort(item.getPrice()); // CS1
-                    response.putShort(pair.getQuantity()); // Q1
+                // Read the rest of the message based on TML, straight after the header
+                if (frameLength > frame.capacity()) {
+                    frame.clear().position(4);
+                    frame = grow(frame, frameLength - 4);
                 }
-                response.putShort((short) -1); // 0xFFFF terminator
+                in.readFully(frame.array(), 4, frameLength - 4);
 
                 // Send response
-                socket.getOutputStream().write(response.array());
-                socket.getOutputStream().flush();
+                response = handleRequest(request.wrap(frame, 0, frameLength), catalogs.current(), response);
+                out.write(response.array(), 0, response.limit());
 
-                // Log response byte-by-byte
-                System.out.print("Response bytes: ");
-                for (byte b : response.array()) {
-                    System.out.printf("0x%02X ", b);
+                // Pipelined clients may already have sent the next frame; answer it before flushing
+                // so back-to-back requests go out in as few segments as possible
+                if (in.available() == 0) {
+                    out.flush();
                 }
-                System.out.println();
-
             }
         } catch (java.io.EOFException e) {
-            System.out.println("Client disconnected.");
+            WireLog.info("Client disconnected.");
+        } finally {
+            ServerMetrics.get().connectionClosed();
+            socket.close();
         }
+    }
+
+    /**
+     * Prices a jumbo order (see JumboOrder) as its lines arrive and writes each priced chunk back
+     * while the client is still sending. Lines are read two bytes at a time through the buffered
+     * stream, so nothing past the terminator is taken from the next request.
+     */
+    private static void streamJumbo(short requestNumber, DataInputStream in, OutputStream out, JumboOrder jumbo,
+                                    Catalog catalog) throws IOException {
+        ByteBuffer header = jumbo.begin(requestNumber, catalog);
+        out.write(header.array(), 0, header.limit());
+        out.flush();
+
+        byte[] lines = new byte[JumboOrder.CHUNK_LINES * 4 + 2];
+        ByteBuffer src = ByteBuffer.wrap(lines);
+        int length = 0;
+        while (jumbo.isActive()) {
+            in.readFully(lines, length, 2);
+            boolean end = (lines[length] & lines[length + 1]) == (byte) 0xFF; // 0xFFFF terminator
+            if (!end) {
+                in.readFully(lines, length + 2, 2); // Ci
+            }
+            length += end ? 2 : 4;
+            if (end || length == JumboOrder.CHUNK_LINES * 4) {
+                ByteBuffer response = jumbo.consume(src.limit(length).position(0));
+                out.write(response.array(), 0, response.limit());
+                length = 0;
+                // Send what is priced so far unless more lines are already waiting
+                if (end || in.available() == 0) {
+                    out.flush();
+                }
+            }
+        }
+    }
 
-        socket.close();
+    /**
+     * Original blocking mode: serves exactly one client socket and then exits.
+     */
+    private static void serveSingle(int port, CatalogWatcher catalogs) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        System.out.println("Server listening on port " + port + "..." + serverSocket.getLocalSocketAddress());
+
+        Socket socket = serverSocket.accept();
+        System.out.println("Client connected: " + socket.getInetAddress() + ":" + socket.getPort());
+
+        serveConnection(socket, catalogs);
         serverSocket.close();
     }
+
+    /**
+     * Accepts clients forever and runs each connection's blocking loop as its own task on the executor.
+     * Catalog snapshots are immutable, so every task can share the current one without locking.
+     */
+    private static void serveThreaded(int port, CatalogWatcher catalogs, ExecutorService executor) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 1024);
+        System.out.println("Server listening on port " + port + "..." + serverSocket.getLocalSocketAddress());
+
+        while (true) {
+            Socket socket = serverSocket.accept();
+            socket.setTcpNoDelay(true);
+            executor.execute(() -> {
+                try {
+                    serveConnection(socket, catalogs);
+                } catch (IOException e) {
+                    WireLog.info("Connection error: " + e);
+                }
+            });
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 3) {
+            throw new IllegalArgumentException("Parameter(s): <Port> [single | nio [<Threads>] | pool [<Threads>] | virtual]");
+        }
+
+        // Load catalog before accepting connections, then pick up edits to it while running.
+        // -Dcatalog=<file>.cat maps a binary catalog built by CatalogCompiler instead of parsing data.csv.
+        CatalogWatcher catalogs = new CatalogWatcher(System.getProperty("catalog", "data.csv"));
+        catalogs.start();
+        ServerMetrics.register("tcp");
+        System.out.println("Pricing with the " + PricingKernel.describe());
+
+        int port = Integer.parseInt(args[0]);
+        String mode = (args.length >= 2) ? args[1] : "single";
+        int threads;
+
+        switch (mode) {
+            case "single":
+                serveSingle(port, catalogs);
+                break;
+            case "nio":
+                threads = (args.length == 3) ? Integer.parseInt(args[2])
+                        : Math.min(4, Runtime.getRuntime().availableProcessors());
+                new OrderSelectorServer(catalogs, threads).serve(port);
+                break;
+            case "pool":
+                threads = (args.length == 3) ? Integer.parseInt(args[2])
+                        : 16 * Runtime.getRuntime().availableProcessors();
+                serveThreaded(port, catalogs, Executors.newFixedThreadPool(threads));
+                break;
+            case "virtual":
+                serveThreaded(port, catalogs, Executors.newVirtualThreadPerTaskExecutor());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
 }
@@ -0,0 +1,248 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Dense, code-indexed catalog of the items in data.csv.
+ * Codes are non-negative shorts, so every possible code gets its own slot and a lookup is a
+ * bounds check plus one read, with no boxing of the code.
+ * Each item's L|D|CS response fragment is encoded once at load time, in both the TCP layout
+ * (2-byte L) and the UDP layout (1-byte L), so responses are built by copying bytes.
+ *
+ * Everything lives in one read-only big-endian image, which is also the binary catalog file format:
+ * Header: magic "CAT1" (4) | version (2) | reserved (2) | item count (4) | "Not Available" UDP fragment offset (4)
+ * Prices: one per code, price (2), NO_PRICE if absent; a column of its own, so pricing an order
+ *         reads 64 KB of the image at most
+ * Slots:  one per code, TCP fragment offset (4) | UDP fragment offset (4), -1 if absent
+ * Arena:  the fragments themselves
+ * A CSV is compiled into a heap image; a binary file is mapped with FileChannel.map, so every
+ * server process on a host reads the same page-cache copy instead of parsing its own.
+ */
+public class Catalog {
+    public static final int CAPACITY = Short.MAX_VALUE + 1; // 32,768 possible codes
+    public static final short NO_PRICE = -1;               // Price slot value for unknown codes
+    public static final String NOT_AVAILABLE = "Article Not Available";
+    public static final String BINARY_SUFFIX = ".cat";
+    private static final int MAX_UDP_NAME_LEN = 254;       // UDP L_i is one byte, and 0xFF is the terminator
+
+    private static final int MAGIC = 0x43415431; // "CAT1"
+    private static final short VERSION = 4;                // 1 allowed 255-byte UDP names, 2 split characters, 3 kept prices in the slots
+    private static final int HEADER_SIZE = 16;
+    private static final int PRICES_START = HEADER_SIZE;
+    private static final int SLOTS_START = PRICES_START + CAPACITY * 2;
+    private static final int SLOT_SIZE = 8;
+    private static final int ARENA_START = SLOTS_START + CAPACITY * SLOT_SIZE;
+
+    private final ByteBuffer image; // Only ever read with absolute gets, so it is safe to share
+
+    private Catalog(ByteBuffer image) throws IOException {
+        if (image.limit() < ARENA_START || image.getInt(0) != MAGIC || image.getShort(4) != VERSION) {
+            throw new IOException("Not a version " + VERSION + " binary catalog");
+        }
+        this.image = image;
+    }
+
+    /**
+     * Loads a binary catalog if fileName ends in ".cat", otherwise parses it as CSV.
+     */
+    public static Catalog load(String fileName) throws IOException {
+        return fileName.endsWith(BINARY_SUFFIX) ? map(fileName) : loadCSV(fileName);
+    }
+
+    /**
+     * Maps a binary catalog file read-only. Nothing is parsed or copied onto the heap.
+     */
+    public static Catalog map(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            return new Catalog(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static Catalog loadCSV(String fileName) throws IOException {
+        Item[] items = new Item[CAPACITY];
+        try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            boolean firstLine = true;
+            while ((line = br.readLine()) != null) {
+                if (firstLine) {
+                    // Strip UTF-8 BOM if present
+                    if (line.startsWith("\uFEFF")) {
+                        line = line.substring(1);
+                    }
+                    firstLine = false;
+                }
+                String[] parts = line.split(",", 3);
+                if (parts.length < 3) continue;
+                short id = Short.parseShort(parts[0].trim());
+                String name = parts[1].trim();
+                short price = Short.parseShort(parts[2].trim());
+                if (id < 0 || price < 0) continue; // Codes and prices are 0-32767 on the wire
+                items[id] = new Item(id, name, price); // Last line wins for a repeated code
+            }
+        }
+        return new Catalog(compile(items));
+    }
+
+    /**
+     * Writes the image as a binary catalog file. The file is written beside the target and then
+     * renamed over it, so processes that have the old file mapped keep a consistent copy.
+     */
+    public void writeBinary(String fileName) throws IOException {
+        Path target = Paths.get(fileName).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = image.duplicate();
+            bytes.clear();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Encodes the items and their fragments into an image. Names are UTF-8; the UDP copy is
+     * cut to at most 254 bytes, since its 1-byte length of 0xFF would read as the first byte of the
+     * 0xFFFF terminator.
+     */
+    private static ByteBuffer compile(Item[] items) {
+        ByteArrayOutputStream arena = new ByteArrayOutputStream();
+        int[] tcpOffsets = new int[CAPACITY];
+        int[] udpOffsets = new int[CAPACITY];
+        int count = 0;
+        for (int code = 0; code < CAPACITY; code++) {
+            if (items[code] == null) continue;
+            count++;
+            byte[] name = items[code].getName().getBytes(StandardCharsets.UTF_8);
+            tcpOffsets[code] = ARENA_START + arena.size();
+            writeFragment(arena, name, name.length, 2, items[code].getPrice());
+            udpOffsets[code] = ARENA_START + arena.size();
+            writeFragment(arena, name, udpNameLength(name), 1, items[code].getPrice());
+        }
+        int notAvailableOffset = ARENA_START + arena.size();
+        byte[] notAvailable = NOT_AVAILABLE.getBytes(StandardCharsets.UTF_8);
+        writeFragment(arena, notAvailable, notAvailable.length, 1, (short) 0);
+
+        ByteBuffer image = ByteBuffer.allocate(ARENA_START + arena.size());
+        image.putInt(MAGIC);
+        image.putShort(VERSION);
+        image.putShort((short) 0);
+        image.putInt(count);
+        image.putInt(notAvailableOffset);
+        for (int code = 0; code < CAPACITY; code++) {
+            image.putShort((items[code] != null) ? items[code].getPrice() : NO_PRICE);
+        }
+        for (int code = 0; code < CAPACITY; code++) {
+            boolean present = items[code] != null;
+            image.putInt(present ? tcpOffsets[code] : -1);
+            image.putInt(present ? udpOffsets[code] : -1);
+        }
+        image.put(arena.toByteArray());
+        return image.clear();
+    }
+
+    /**
+     * Length of the UDP copy of name: at most MAX_UDP_NAME_LEN bytes, cut before a whole character
+     * so a long non-ASCII name does not end in half of one.
+     */
+    static int udpNameLength(byte[] name) {
+        if (name.length <= MAX_UDP_NAME_LEN) {
+            return name.length;
+        }
+        int n = MAX_UDP_NAME_LEN;
+        while (n > 0 && (name[n] & 0xC0) == 0x80) { // name[n] continues the character that starts before it
+            n--;
+        }
+        return n;
+    }
+
+    private static void writeFragment(ByteArrayOutputStream out, byte[] name, int nameLength, int lengthBytes, short price) {
+        if (lengthBytes == 2) {
+            out.write(nameLength >> 8);
+        }
+        out.write(nameLength);
+        out.write(name, 0, nameLength);
+        out.write(price >> 8);
+        out.write(price);
+    }
+
+    private static int slot(short code) {
+        return SLOTS_START + code * SLOT_SIZE;
+    }
+
+    /**
+     * Returns the length of the TCP fragment L1 (2) | D1 | CS1 (2) for code, or 0 if the code is unknown.
+     */
+    public int tcpFragmentLength(short code) {
+        if (!contains(code)) return 0;
+        return 2 + (image.getShort(image.getInt(slot(code))) & 0xFFFF) + 2;
+    }
+
+    /**
+     * Copies the TCP fragment for a known code into out. The caller appends Q1.
+     */
+    public void putTcpFragment(short code, ByteBuffer out) {
+        copy(image.getInt(slot(code)), tcpFragmentLength(code), out);
+    }
+
+    /**
+     * Returns the length of the UDP fragment L_i (1) | D_i | CS_i (2) for code.
+     * Unknown codes use the "Article Not Available" fragment with a unit cost of 0.
+     */
+    public int udpFragmentLength(short code) {
+        return 1 + (image.get(udpOffset(code)) & 0xFF) + 2;
+    }
+
+    /**
+     * Copies the UDP fragment for code into out. The caller appends Q_i.
+     */
+    public void putUdpFragment(short code, ByteBuffer out) {
+        copy(udpOffset(code), udpFragmentLength(code), out);
+    }
+
+    private int udpOffset(short code) {
+        return contains(code) ? image.getInt(slot(code) + 4) : image.getInt(12);
+    }
+
+    private void copy(int offset, int length, ByteBuffer out) {
+        out.put(out.position(), image, offset, length);
+        out.position(out.position() + length);
+    }
+
+    /**
+     * Returns the unit price for code, or NO_PRICE if the code is not in the catalog.
+     */
+    public short getPrice(short code) {
+        return (code >= 0) ? image.getShort(PRICES_START + code * 2) : NO_PRICE;
+    }
+
+    public boolean contains(short code) {
+        return getPrice(code) != NO_PRICE;
+    }
+
+    /**
+     * Returns the item for code, or null if the code is not in the catalog.
+     * The Item is decoded from the image on each call, so keep this off the request path.
+     */
+    public Item get(short code) {
+        if (!contains(code)) return null;
+        int offset = image.getInt(slot(code));
+        byte[] name = new byte[image.getShort(offset) & 0xFFFF];
+        image.get(offset + 2, name);
+        return new Item(code, new String(name, StandardCharsets.UTF_8), getPrice(code));
+    }
+
+    public int size() {
+        return image.getInt(8);
+    }
+}
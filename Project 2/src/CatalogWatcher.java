@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the live Catalog snapshot and replaces it whenever the catalog file changes on disk.
+ * The file may be a CSV or a compiled binary catalog (see Catalog.load).
+ * The new file is parsed on a background thread and published with one atomic swap, so readers
+ * never lock. Callers take current() once per request and price the whole request against that
+ * snapshot, which keeps TC consistent even if a reload lands mid-request.
+ */
+public class CatalogWatcher {
+    private static final long SETTLE_MILLIS = 100; // Editors often write a file in several steps
+
+    private final Path file;
+    private final AtomicReference<Catalog> current;
+
+    public CatalogWatcher(String fileName) throws IOException {
+        this.file = Paths.get(fileName).toAbsolutePath();
+        this.current = new AtomicReference<>(Catalog.load(file.toString()));
+    }
+
+    public Catalog current() {
+        return current.get();
+    }
+
+    /**
+     * Starts watching the catalog file on a daemon thread.
+     */
+    public void start() throws IOException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread t = new Thread(() -> watch(watcher), "catalog-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void watch(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (file.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    Thread.sleep(SETTLE_MILLIS);
+                    drain(watcher);
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Watcher shut down
+        }
+    }
+
+    private static void drain(WatchService watcher) {
+        WatchKey key;
+        while ((key = watcher.poll()) != null) {
+            key.pollEvents();
+            key.reset();
+        }
+    }
+
+    /**
+     * Parses the file and swaps it in. A file that fails to parse leaves the old snapshot live.
+     */
+    public void reload() {
+        try {
+            Catalog next = Catalog.load(file.toString());
+            current.set(next);
+            System.out.println("Catalog reloaded from " + file + ": " + next.size() + " item(s).");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("ERROR: Catalog reload failed, keeping previous catalog: " + e);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import java.lang.invoke.VarHandle;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bounded, time-evicted cache of the replies sent to recent requests, so a retransmitted request
+ * gets the stored bytes back instead of being priced again. That keeps retries cheap under loss and
+ * means a client sees the same TC for every copy, even if the catalog was reloaded in between.
+ *
+ * Entries are keyed by client endpoint and Request #, and a hit also requires the request bytes to
+ * match: Request # is only 16 bits, so a busy client reuses numbers long before an entry expires.
+ *
+ * Nothing is allocated per request. Each entry's request and reply bytes are copied into one
+ * preallocated ring of arenaBytes, oldest overwritten first, and the entry itself is a slot in a
+ * fixed table indexed by a hash of the key. A new entry replaces whatever held its slot, so an entry
+ * is gone once its slot is reused, its bytes are overwritten or its time is up, whichever comes
+ * first. Entries larger than a quarter of the ring are not kept. Safe for use by several workers at once.
+ *
+ * The lock only covers the slot table and the ring's write position, never a copy, so workers do not
+ * queue behind each other's large replies. A writer reserves its part of the ring under the lock,
+ * copies into it unlocked, then publishes the slot. An entry whose space would overlap a copy still
+ * in progress is not kept. A reader copies unlocked and then checks that nobody
+ * reserved over those bytes meanwhile, treating it as a miss if they did.
+ */
+public class ReplyCache {
+    private static final int MAX_WRITERS = 64; // Copies in progress at once; more are not cached
+
+    private final long ttlNanos;
+    private final int mask;
+    private final SocketAddress[] clients; // null for an empty slot
+    private final short[] requestNumbers;
+    private final long[] starts;           // Ring position of the request bytes; the reply follows them
+    private final int[] requestLengths;
+    private final int[] replyLengths;
+    private final long[] storedAt;
+    private final byte[] ring;
+    private final long[] writing = new long[MAX_WRITERS]; // Ring positions being copied into
+    private int writers;
+    private long head;                     // Bytes ever reserved in the ring; the next entry goes at head % ring.length
+
+    /**
+     * A cache of at least capacity slots (rounded up to a power of two) sharing arenaBytes of storage.
+     */
+    public ReplyCache(int capacity, int arenaBytes, long ttlMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Reply cache capacity must be at least 1");
+        }
+        int slots = (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = slots - 1;
+        this.clients = new SocketAddress[slots];
+        this.requestNumbers = new short[slots];
+        this.starts = new long[slots];
+        this.requestLengths = new int[slots];
+        this.replyLengths = new int[slots];
+        this.storedAt = new long[slots];
+        this.ring = new byte[arenaBytes];
+        this.ttlNanos = ttlMillis * 1_000_000L;
+    }
+
+    private int slot(SocketAddress client, short requestNumber) {
+        int hash = (client.hashCode() * 31 + requestNumber) * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Looks up the reply to the request in request[offset, offset + length) from client. On a hit
+     * the reply is copied into out from 0, growing it if needed, and out is returned with its
+     * position at the end of the reply. Returns null if there is no reply, it has expired, or it was
+     * for a different request with the same number.
+     */
+    public ByteBuffer get(SocketAddress client, ByteBuffer request, int offset, int length, ByteBuffer out) {
+        short requestNumber = request.getShort(offset);
+        int s = slot(client, requestNumber);
+        long start;
+        int replyLength;
+        synchronized (this) {
+            if (!isLive(s, System.nanoTime()) || requestNumbers[s] != requestNumber || requestLengths[s] != length
+                    || !client.equals(clients[s])) {
+                return null;
+            }
+            start = starts[s];
+            replyLength = replyLengths[s];
+        }
+        int at = (int) (start % ring.length);
+        for (int i = 0; i < length; i++) {
+            if (ring[at + i] != request.get(offset + i)) {
+                return null;
+            }
+        }
+
+        out = copyReply(at + length, replyLength, out);
+        return intact(start) ? out : null;
+    }
+
+    /**
+     * Looks up the latest reply to request number requestNumber from client, whatever the request
+     * was, for a client asking for parts of a reply again (see UdpFragments). Copies it as get does,
+     * or returns null if there is none or it has expired.
+     */
+    public ByteBuffer getReply(SocketAddress client, short requestNumber, ByteBuffer out) {
+        int s = slot(client, requestNumber);
+        long start;
+        int from;
+        int replyLength;
+        synchronized (this) {
+            if (!isLive(s, System.nanoTime()) || requestNumbers[s] != requestNumber || !client.equals(clients[s])) {
+                return null;
+            }
+            start = starts[s];
+            from = (int) (start % ring.length) + requestLengths[s];
+            replyLength = replyLengths[s];
+        }
+        out = copyReply(from, replyLength, out);
+        return intact(start) ? out : null;
+    }
+
+    private ByteBuffer copyReply(int from, int replyLength, ByteBuffer out) {
+        if (out.capacity() < replyLength) {
+            out = ByteBuffer.allocate(replyLength).order(ByteOrder.BIG_ENDIAN);
+        }
+        out.clear();
+        out.put(0, ring, from, replyLength);
+        out.position(replyLength);
+        return out;
+    }
+
+    /**
+     * True if nothing has been reserved over the entry at ring position start since it was looked
+     * up, so the bytes just copied from it are the entry's.
+     */
+    private boolean intact(long start) {
+        VarHandle.acquireFence(); // Keep the unlocked copy ahead of this check
+        synchronized (this) {
+            return head - start <= ring.length;
+        }
+    }
+
+    /**
+     * Stores the reply in reply[0, replyLength) for the request in request[offset, offset + length).
+     */
+    public void put(SocketAddress client, ByteBuffer request, int offset, int length, ByteBuffer reply, int replyLength) {
+        int size = length + replyLength;
+        if (size > ring.length / 4) {
+            return;
+        }
+        long start;
+        synchronized (this) {
+            start = head;
+            if (start % ring.length + size > ring.length) {
+                start += ring.length - start % ring.length; // Entries never wrap; start again at the front
+            }
+            for (int w = 0; w < writers; w++) {
+                if (start + size - writing[w] > ring.length) {
+                    return; // Would overwrite a copy still in progress
+                }
+            }
+            if (writers == MAX_WRITERS) {
+                return;
+            }
+            writing[writers++] = start;
+            head = start + size;
+        }
+
+        int at = (int) (start % ring.length);
+        request.get(offset, ring, at, length);
+        reply.get(0, ring, at + length, replyLength);
+
+        short requestNumber = request.getShort(offset);
+        int s = slot(client, requestNumber);
+        synchronized (this) {
+            for (int w = 0; w < writers; w++) {
+                if (writing[w] == start) {
+                    writing[w] = writing[--writers];
+                    break;
+                }
+            }
+            clients[s] = client;
+            requestNumbers[s] = requestNumber;
+            starts[s] = start;
+            requestLengths[s] = length;
+            replyLengths[s] = replyLength;
+            storedAt[s] = System.nanoTime();
+        }
+    }
+
+    /**
+     * True if slot s holds an entry that has neither expired nor been overwritten in the ring.
+     */
+    private boolean isLive(int s, long now) {
+        return clients[s] != null && now - storedAt[s] <= ttlNanos
+                && head - starts[s] <= ring.length; // Writes go forward, so the first byte is overwritten first
+    }
+
+    public synchronized int size() {
+        long now = System.nanoTime();
+        int live = 0;
+        for (int s = 0; s <= mask; s++) {
+            if (isLive(s, now)) {
+                live++;
+            }
+        }
+        return live;
+    }
+}
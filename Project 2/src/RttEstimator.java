@@ -0,0 +1,66 @@
+/**
+ * Retransmission timeout estimator in the style of RFC 6298 (Jacobson/Karels).
+ * Keeps a smoothed round-trip time and its mean deviation from answered requests and derives
+ * RTO = SRTT + 4 * RTTVAR, clamped to [MIN_RTO, MAX_RTO]. Every timeout doubles the RTO until the
+ * next answer of any kind arrives. Following Karn's rule, callers should only sample requests that
+ * were sent once, since the answer to a retransmitted request cannot be tied to one particular send;
+ * such answers still call clearBackoff(), otherwise a run of lossy exchanges would keep the timeout
+ * growing for lack of a valid sample.
+ */
+public class RttEstimator {
+    static final long INITIAL_RTO_NANOS = 1_000_000_000L; // Before the first sample (RFC 6298: 1 s)
+    static final long MIN_RTO_NANOS = 10_000_000L;        // 10 ms; LAN round trips are far below RFC's 1 s floor
+    static final long MAX_RTO_NANOS = 5_000_000_000L;     // The client's old fixed timeout
+    private static final int MAX_BACKOFF = 16;
+
+    private long srtt;   // 0 until the first sample
+    private long rttvar;
+    private long rto = INITIAL_RTO_NANOS;
+    private int backoff; // Timeouts since the last answer; the RTO is doubled this many times
+
+    /**
+     * Folds one measured round trip into the estimate and clears any backoff.
+     */
+    public synchronized void sample(long rttNanos) {
+        if (srtt == 0) {
+            srtt = Math.max(1, rttNanos);
+            rttvar = rttNanos / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rttNanos)) / 4; // beta = 1/4
+            srtt = (7 * srtt + rttNanos) / 8;                       // alpha = 1/8
+        }
+        rto = Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, srtt + 4 * rttvar));
+        backoff = 0;
+    }
+
+    /**
+     * Records an answer to a retransmitted request: the path works again, but there is no sample.
+     */
+    public synchronized void clearBackoff() {
+        backoff = 0;
+    }
+
+    /**
+     * Records a timeout: the next timeouts are twice as long, up to MAX_RTO.
+     */
+    public synchronized void backoff() {
+        if (backoff < MAX_BACKOFF) {
+            backoff++;
+        }
+    }
+
+    public synchronized long getTimeoutNanos() {
+        return Math.min(MAX_RTO_NANOS, rto << backoff);
+    }
+
+    /**
+     * The current timeout rounded up to whole milliseconds, for setSoTimeout.
+     */
+    public int getTimeoutMillis() {
+        return (int) Math.max(1, (getTimeoutNanos() + 999_999) / 1_000_000);
+    }
+
+    public synchronized long getSmoothedRttNanos() {
+        return srtt;
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Fragmented message extension of the UDP order protocol, for orders too large for one datagram.
+ *
+ * A fragmented message has the same 4-byte header as a normal one, but its TML field holds MARKER
+ * (0xFFFE) instead of a length, since the message may be longer than a short can describe:
+ *   Request # (2) | 0xFFFE (2) | body
+ * The body is the normal request body (Q1 (2) | C1 (2) | ... | 0xFFFF (2)), or for a response the
+ * TCP response body, whose 2-byte L_i allows full-length names:
+ *   TC (4) | L1 (2) | D1 (L1) | CS1 (2) | Q1 (2) | ... | 0xFFFF (2)
+ * It travels as one or more datagrams, each small enough to cross the path without IP fragmentation:
+ *   Request # (2) | 0xFFFE (2) | Fragment index (2) | Fragment count (2) | next slice of the body
+ * The server answers a fragmented request with a fragmented response, and a normal request with a
+ * normal response, so clients that never fragment see no change. A message needs at most
+ * MAX_FRAGMENTS fragments and MAX_MESSAGE_SIZE bytes of body, or the receiver drops it; a response
+ * that would be larger is answered with the normal error response, Request # | 0xFFFF.
+ *
+ * Either side sends all the fragments of a message at once, which can overrun the receiver's socket
+ * buffer. Rather than have the whole message sent again, which would only bring the same burst, a
+ * receiver holding part of a message asks for the fragments it is missing:
+ *   Request # (2) | 0xFFFD (2) | Fragment count (2) | Fragment index (2) | ...
+ * listing at most MAX_RESEND indexes, few enough that their burst fits a default receive buffer.
+ * It asks once the last fragment of the current burst has arrived, and the client also asks when
+ * fragments stop arriving. The server asks the client for missing request fragments; the client asks
+ * the server for missing response fragments, which the server takes from its reply cache. If the
+ * sender no longer has the message it sends nothing, and the client's retransmission timeout takes over.
+ * A client retransmits a fragmented request as just its last fragment, which ends a burst at the
+ * server and so makes it ask for everything else it is missing.
+ */
+public final class UdpFragments {
+    public static final short MARKER = (short) 0xFFFE;
+    public static final short RESEND = (short) 0xFFFD;
+    public static final int MAX_RESEND = 64;
+    public static final int HEADER_SIZE = 8;
+    public static final int MAX_FRAGMENTS = 1024;
+    public static final int MAX_MESSAGE_SIZE = 1 << 20; // Reassembly refuses anything larger
+    public static final int MAX_NORMAL_REQUEST_SIZE = 1024; // Larger requests must be fragmented
+
+    // -Dudp.mtu=<bytes>, default Ethernet. 48 bytes covers an IPv6 or IPv4 header plus the UDP header.
+    public static final int PAYLOAD_SIZE = Integer.getInteger("udp.mtu", 1500) - 48 - HEADER_SIZE;
+    public static final int MAX_DATAGRAM_SIZE = HEADER_SIZE + PAYLOAD_SIZE;
+
+    private UdpFragments() {
+    }
+
+    /**
+     * Number of fragments needed for a message of messageLength bytes, header included.
+     */
+    public static int count(int messageLength) {
+        return Math.max(1, (messageLength - 4 + PAYLOAD_SIZE - 1) / PAYLOAD_SIZE);
+    }
+
+    /**
+     * True if a message of messageLength bytes, header included, is small enough to be reassembled.
+     */
+    public static boolean fits(int messageLength) {
+        return messageLength - 4 <= MAX_MESSAGE_SIZE && count(messageLength) <= MAX_FRAGMENTS;
+    }
+
+    /**
+     * Writes fragment index of message[0, length) into out and flips it, ready to send.
+     */
+    public static void putFragment(ByteBuffer message, int length, int index, ByteBuffer out) {
+        int start = 4 + index * PAYLOAD_SIZE;
+        int size = Math.min(PAYLOAD_SIZE, length - start);
+        out.clear();
+        out.putShort(message.getShort(0));
+        out.putShort(MARKER);
+        out.putShort((short) index);
+        out.putShort((short) count(length));
+        out.put(out.position(), message, start, size);
+        out.position(out.position() + size);
+        out.flip();
+    }
+
+    /**
+     * Sends every fragment of message[0, length) to client, using scratch as the datagram buffer.
+     */
+    public static void send(DatagramChannel channel, SocketAddress client, ByteBuffer message, int length,
+                            ByteBuffer scratch) throws IOException {
+        if (!fits(length)) {
+            throw new IllegalArgumentException("Message of " + length + " bytes is too large to fragment");
+        }
+        int count = count(length);
+        for (int i = 0; i < count; i++) {
+            putFragment(message, length, i, scratch);
+            channel.send(scratch, client);
+        }
+    }
+
+    /**
+     * Sends the fragments of message[0, length) listed in the resend request in
+     * resend[offset, offset + resendLength), and returns how many were sent. Sends nothing if the
+     * request is for a different number of fragments, so it cannot be answered from the wrong message.
+     */
+    public static int resend(DatagramChannel channel, SocketAddress client, ByteBuffer message, int length,
+                             ByteBuffer resend, int offset, int resendLength, ByteBuffer scratch) throws IOException {
+        int count = count(length);
+        if ((resend.getShort(offset + 4) & 0xFFFF) != count) {
+            return 0;
+        }
+        int sent = 0;
+        for (int at = offset + 6; at + 2 <= offset + resendLength && sent < MAX_RESEND; at += 2) {
+            int index = resend.getShort(at) & 0xFFFF;
+            if (index < count) {
+                putFragment(message, length, index, scratch);
+                channel.send(scratch, client);
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Sends the datagrams (as made by split) listed in the resend request in
+     * resend[offset, offset + resendLength) to the connected socket's peer, and returns how many
+     * were sent. Sends nothing if the request is for a different number of fragments.
+     */
+    public static int resend(DatagramSocket socket, byte[][] datagrams, ByteBuffer resend, int offset,
+                             int resendLength) throws IOException {
+        if ((resend.getShort(offset + 4) & 0xFFFF) != datagrams.length) {
+            return 0;
+        }
+        int sent = 0;
+        for (int at = offset + 6; at + 2 <= offset + resendLength && sent < MAX_RESEND; at += 2) {
+            int index = resend.getShort(at) & 0xFFFF;
+            if (index < datagrams.length) {
+                socket.send(new DatagramPacket(datagrams[index], datagrams[index].length));
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Writes a request for fragments indexes[0, n) of the count-fragment message requestNumber
+     * into out and flips it, ready to send.
+     */
+    public static void putResend(short requestNumber, int count, int[] indexes, int n, ByteBuffer out) {
+        out.clear();
+        out.putShort(requestNumber);
+        out.putShort(RESEND);
+        out.putShort((short) count);
+        for (int i = 0; i < n; i++) {
+            out.putShort((short) indexes[i]);
+        }
+        out.flip();
+    }
+
+    /**
+     * Splits an encoded request (normal framing, whose TML is ignored) into fragment datagrams.
+     */
+    public static byte[][] split(byte[] request, int length) {
+        if (!fits(length)) {
+            throw new IllegalArgumentException("Order of " + length + " bytes is too large to fragment");
+        }
+        ByteBuffer message = ByteBuffer.wrap(request);
+        ByteBuffer out = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        byte[][] datagrams = new byte[count(length)][];
+        for (int i = 0; i < datagrams.length; i++) {
+            putFragment(message, length, i, out);
+            datagrams[i] = new byte[out.remaining()];
+            out.get(datagrams[i]);
+        }
+        return datagrams;
+    }
+
+    public static boolean isFragment(ByteBuffer datagram, int offset, int length) {
+        return length >= HEADER_SIZE && datagram.getShort(offset + 2) == MARKER;
+    }
+
+    public static boolean isResend(ByteBuffer datagram, int offset, int length) {
+        return length >= 6 && datagram.getShort(offset + 2) == RESEND;
+    }
+}
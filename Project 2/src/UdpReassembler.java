@@ -0,0 +1,211 @@
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * Bounded reassembly table for fragmented messages (see UdpFragments).
+ * Partial messages are keyed by sender and Request #. The table holds at most capacity of them, and
+ * at most perSender from any one address, whatever its ports; a new one replaces the sender's least
+ * recently used one. Storage is taken one fragment at a time as fragments arrive, so a partial costs
+ * what it has received, never more than UdpFragments.MAX_MESSAGE_SIZE.
+ * A partial is dropped once nothing has arrived for it for IDLE_RTOS retransmission timeouts, or the
+ * timeout given, whichever is shorter: a sender that is still there retransmits within an RTO, and
+ * the RTO here comes from how long the sender takes to answer putResend. A later fragment simply
+ * starts the message again. Fragments that are duplicated, out of range, or disagree with the others
+ * on the fragment count are ignored. A receiver that has waited too long for the rest of a message
+ * can ask its sender for the missing fragments with putResend. Safe for use by several threads.
+ */
+public class UdpReassembler {
+    private static final int IDLE_RTOS = 4;
+
+    private static final class Key {
+        final SocketAddress sender;
+        final short requestNumber;
+
+        Key(SocketAddress sender, short requestNumber) {
+            this.sender = sender;
+            this.requestNumber = requestNumber;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return requestNumber == other.requestNumber && sender.equals(other.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(sender) * 31 + requestNumber;
+        }
+    }
+
+    private static final class Partial {
+        final byte[][] fragments; // Each allocated when it arrives
+        final Object source;      // Sender's address without the port
+        long activeAt; // Latest fragment or resend request
+        long askedAt;  // When putResend last asked for fragments, until one arrives; 0 otherwise
+        int burstEnd;  // Index of the last fragment the sender is sending now
+        boolean burstOver;
+        int received;
+        int bodyLength;
+
+        Partial(int count, Object source, long now) {
+            this.fragments = new byte[count][];
+            this.source = source;
+            this.activeAt = now;
+            this.burstEnd = count - 1;
+        }
+    }
+
+    private final int capacity;
+    private final int perSender;
+    private final long timeoutNanos;
+    private final RttEstimator rtt = new RttEstimator();
+    private final LinkedHashMap<Key, Partial> partials = new LinkedHashMap<>(16, 0.75f, true); // Least recently used first
+
+    /**
+     * A table of up to capacity partial messages from any number of senders, for a receiver that
+     * only hears from one (a client reassembling its server's responses).
+     */
+    public UdpReassembler(int capacity, long timeoutMillis) {
+        this(capacity, capacity, timeoutMillis);
+    }
+
+    public UdpReassembler(int capacity, int perSender, long timeoutMillis) {
+        if (capacity < 1 || perSender < 1) {
+            throw new IllegalArgumentException("Reassembly capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.perSender = perSender;
+        this.timeoutNanos = timeoutMillis * 1_000_000L;
+    }
+
+    /**
+     * Adds the fragment in datagram[offset, offset + length) from sender. Returns the whole message,
+     * Request # | 0xFFFE | body, once its last missing fragment arrives, otherwise null.
+     */
+    public synchronized byte[] add(SocketAddress sender, ByteBuffer datagram, int offset, int length) {
+        long now = System.nanoTime();
+        expire(now);
+
+        short requestNumber = datagram.getShort(offset);
+        int index = datagram.getShort(offset + 4) & 0xFFFF;
+        int count = datagram.getShort(offset + 6) & 0xFFFF;
+        int size = length - UdpFragments.HEADER_SIZE;
+        if (count < 1 || count > UdpFragments.MAX_FRAGMENTS || index >= count || size <= 0) {
+            return null;
+        }
+
+        Key key = new Key(sender, requestNumber);
+        Partial p = partials.get(key);
+        if (p == null || p.fragments.length != count) {
+            Object source = (sender instanceof InetSocketAddress) ? ((InetSocketAddress) sender).getAddress() : sender;
+            if (p == null) {
+                makeRoom(source);
+            }
+            p = new Partial(count, source, now);
+            partials.put(key, p);
+        }
+        p.activeAt = now; // Even a duplicate shows the sender is still there
+        if (index >= p.burstEnd) {
+            p.burstOver = true; // Whatever else is missing is lost
+        }
+        if (p.fragments[index] != null || p.bodyLength + size > UdpFragments.MAX_MESSAGE_SIZE) {
+            return null;
+        }
+
+        byte[] slice = new byte[size];
+        datagram.get(offset + UdpFragments.HEADER_SIZE, slice);
+        p.fragments[index] = slice;
+        p.bodyLength += size;
+        if (p.askedAt != 0) {
+            rtt.sample(now - p.askedAt); // The sender's answer to putResend
+            p.askedAt = 0;
+        }
+        if (++p.received < count) {
+            return null;
+        }
+
+        partials.remove(key);
+        ByteBuffer message = ByteBuffer.allocate(4 + p.bodyLength);
+        message.putShort(requestNumber);
+        message.putShort(UdpFragments.MARKER);
+        for (byte[] fragment : p.fragments) {
+            message.put(fragment);
+        }
+        return message.array();
+    }
+
+    /**
+     * If message requestNumber from sender is incomplete and its sender is done sending (the last
+     * fragment of its latest burst has arrived) or nothing has arrived for idleNanos, writes a request
+     * for up to UdpFragments.MAX_RESEND of the missing fragments, lowest first, into out, flipped and
+     * ready to send to sender, and returns true. The highest of those ends the next burst, so the
+     * next call asks again once the resent fragments are in or have stopped coming.
+     */
+    public synchronized boolean putResend(SocketAddress sender, short requestNumber, long idleNanos, ByteBuffer out) {
+        long now = System.nanoTime();
+        Partial p = partials.get(new Key(sender, requestNumber));
+        if (p == null || !p.burstOver && now - p.activeAt < idleNanos) {
+            return false;
+        }
+        int[] missing = new int[UdpFragments.MAX_RESEND];
+        int n = 0;
+        for (int i = 0; i < p.fragments.length && n < missing.length; i++) {
+            if (p.fragments[i] == null) {
+                missing[n++] = i;
+            }
+        }
+        UdpFragments.putResend(requestNumber, p.fragments.length, missing, n, out);
+        p.activeAt = now;
+        p.askedAt = now;
+        p.burstEnd = missing[n - 1];
+        p.burstOver = false;
+        return true;
+    }
+
+    /**
+     * Drops partials that have gone quiet.
+     */
+    private void expire(long now) {
+        long idle = Math.min(timeoutNanos, IDLE_RTOS * rtt.getTimeoutNanos());
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().activeAt > idle) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Makes room for a new partial from source by dropping its least recently used one if it is at
+     * perSender, else the table's least recently used one if the table is full.
+     */
+    private void makeRoom(Object source) {
+        Partial oldestOfSource = null;
+        int fromSource = 0;
+        for (Partial q : partials.values()) {
+            if (q.source.equals(source) && fromSource++ == 0) {
+                oldestOfSource = q;
+            }
+        }
+        Iterator<Partial> it = partials.values().iterator();
+        if (fromSource >= perSender) {
+            while (it.next() != oldestOfSource) {
+                // Find it
+            }
+            it.remove();
+        } else if (partials.size() >= capacity) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return partials.size();
+    }
+}
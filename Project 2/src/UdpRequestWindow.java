@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reliable request window over a connected DatagramSocket.
+ * Up to window requests are outstanding at once, matched to their responses by Request #.
+ * One receiver thread reads responses and also retransmits any request whose timeout has expired,
+ * with the timeout taken from an RttEstimator. A request that is still unanswered after
+ * MAX_RETRANSMITS retransmissions is reported as failed.
+ * Requests too large for one datagram are sent as fragments (see UdpFragments) and resent a few at
+ * a time when the server asks for missing ones. On timeout only the last fragment is retransmitted,
+ * which ends the burst and makes the server ask for the rest. Fragmented responses are reassembled
+ * before they are matched. While a response is still
+ * arriving its request is not retransmitted, and once its fragments stop coming the missing ones are
+ * asked for again rather than the whole response.
+ */
+public class UdpRequestWindow implements AutoCloseable {
+    public static final int MAX_RETRANSMITS = 6;
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+    private static final long REASSEMBLY_TIMEOUT_MILLIS = 5_000;
+    private static final long MIN_RESEND_IDLE_NANOS = 1_000_000L;
+
+    /**
+     * Called on the receiver thread for each request as it completes.
+     */
+    public interface Listener {
+        /**
+         * The response to requestNumber, which may be an error response (TML = -1).
+         */
+        void onResponse(short requestNumber, byte[] response);
+
+        void onFailure(short requestNumber, int transmissions);
+    }
+
+    private static final class Pending {
+        final byte[][] datagrams; // The request, or its fragments
+        long sentAt;              // Time of the latest transmission
+        long deadline;            // Retransmit when this passes
+        int transmissions;
+
+        Pending(byte[][] datagrams, long sentAt, long timeout) {
+            this.datagrams = datagrams;
+            this.sentAt = sentAt;
+            this.deadline = sentAt + timeout;
+            this.transmissions = 1;
+        }
+    }
+
+    private final DatagramSocket socket;
+    private final int window;
+    private final Listener listener;
+    private final RttEstimator rtt = new RttEstimator();
+    private final Semaphore slots;
+    private final Map<Short, Pending> outstanding = new ConcurrentHashMap<>();
+    private final UdpReassembler reassembler;
+    private final ByteBuffer resendRequest = ByteBuffer.allocate(UdpFragments.MAX_DATAGRAM_SIZE);
+    private volatile boolean closed;
+    private volatile boolean stopped; // The receiver has exited and failed what was outstanding
+
+    /**
+     * Starts the receiver thread. The socket must already be connected to the server.
+     */
+    public UdpRequestWindow(DatagramSocket socket, int window, Listener listener) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be at least 1");
+        }
+        this.socket = socket;
+        this.window = window;
+        this.listener = listener;
+        this.slots = new Semaphore(window);
+        this.reassembler = new UdpReassembler(window, REASSEMBLY_TIMEOUT_MILLIS);
+
+        Thread receiver = new Thread(this::receive, "udp-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Sends an encoded request, first waiting while window requests are already outstanding.
+     * Throws IOException once the receiver has stopped, since nothing would answer the request.
+     */
+    public void submit(byte[] request) throws IOException, InterruptedException {
+        byte[][] datagrams = (request.length > UdpFragments.MAX_NORMAL_REQUEST_SIZE)
+                ? UdpFragments.split(request, request.length) : new byte[][]{request};
+        slots.acquire();
+        short requestNumber = (short) (((request[0] & 0xFF) << 8) | (request[1] & 0xFF));
+        outstanding.put(requestNumber, new Pending(datagrams, System.nanoTime(), rtt.getTimeoutNanos()));
+        if (stopped && outstanding.remove(requestNumber) != null) {
+            throw new IOException("Request window is closed");
+        }
+        try {
+            send(datagrams);
+        } catch (PortUnreachableException e) {
+            // The server is not up (yet); the request times out and is retransmitted like a lost one
+        }
+    }
+
+    private void send(byte[][] datagrams) throws IOException {
+        for (byte[] datagram : datagrams) {
+            socket.send(new DatagramPacket(datagram, datagram.length));
+        }
+    }
+
+    /**
+     * Waits until every submitted request has completed or failed.
+     */
+    public void drain() throws InterruptedException {
+        slots.acquire(window);
+        slots.release(window);
+    }
+
+    public int getOutstanding() {
+        return outstanding.size();
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        socket.close();
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            while (!closed) {
+                long wait = retransmitExpired(System.nanoTime());
+                if (reassembler.size() > 0) {
+                    requestMissing();
+                    wait = Math.min(wait, resendIdleNanos());
+                }
+                socket.setSoTimeout((int) Math.max(1, (wait + 999_999) / 1_000_000));
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                } catch (SocketTimeoutException | PortUnreachableException e) {
+                    continue; // Treated like loss; the request times out and is retransmitted
+                }
+                if (packet.getLength() < 4) {
+                    continue;
+                }
+
+                if (UdpFragments.isResend(ByteBuffer.wrap(buffer), 0, packet.getLength())) {
+                    Pending p = outstanding.get((short) (((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF)));
+                    if (p != null && UdpFragments.resend(socket, p.datagrams, ByteBuffer.wrap(buffer), 0, packet.getLength()) > 0) {
+                        p.deadline = System.nanoTime() + rtt.getTimeoutNanos(); // The server is filling gaps
+                    }
+                    continue;
+                }
+
+                byte[] response;
+                if (UdpFragments.isFragment(ByteBuffer.wrap(buffer), 0, packet.getLength())) {
+                    response = reassembler.add(packet.getSocketAddress(), ByteBuffer.wrap(buffer), 0, packet.getLength());
+                    if (response == null) {
+                        Pending p = outstanding.get((short) (((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF)));
+                        if (p != null) {
+                            p.deadline = System.nanoTime() + rtt.getTimeoutNanos(); // Still arriving
+                        }
+                        continue; // Wait for the rest of the response
+                    }
+                } else {
+                    response = Arrays.copyOf(buffer, packet.getLength());
+                }
+
+                short requestNumber = (short) (((response[0] & 0xFF) << 8) | (response[1] & 0xFF));
+                Pending p = outstanding.remove(requestNumber);
+                if (p == null) {
+                    continue; // Duplicate answer to a retransmitted request
+                }
+                if (p.transmissions == 1) {
+                    rtt.sample(System.nanoTime() - p.sentAt);
+                } else {
+                    rtt.clearBackoff();
+                }
+                try {
+                    listener.onResponse(requestNumber, response);
+                } finally {
+                    slots.release();
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.out.println("ERROR: " + e);
+            }
+        } finally {
+            // Nothing more will arrive; fail what is left so nobody waits forever
+            stopped = true;
+            for (Map.Entry<Short, Pending> entry : outstanding.entrySet()) {
+                if (outstanding.remove(entry.getKey()) != null) {
+                    listener.onFailure(entry.getKey(), entry.getValue().transmissions);
+                    slots.release();
+                }
+            }
+            slots.release(window);
+        }
+    }
+
+    /**
+     * How long a partly received response may go without a fragment before the rest is asked for.
+     */
+    private long resendIdleNanos() {
+        return Math.max(MIN_RESEND_IDLE_NANOS, rtt.getSmoothedRttNanos() / 2);
+    }
+
+    /**
+     * Asks the server for the missing fragments of every outstanding response that has stalled.
+     */
+    private void requestMissing() throws IOException {
+        SocketAddress server = socket.getRemoteSocketAddress();
+        long idle = resendIdleNanos();
+        for (Short requestNumber : outstanding.keySet()) {
+            if (reassembler.putResend(server, requestNumber, idle, resendRequest)) {
+                try {
+                    socket.send(new DatagramPacket(resendRequest.array(), resendRequest.limit()));
+                } catch (PortUnreachableException e) {
+                    // Lost like any other datagram; asked again once the resend times out
+                }
+            }
+        }
+    }
+
+    /**
+     * Retransmits or fails every request whose deadline has passed and returns the time until the
+     * next deadline. With nothing outstanding it returns the current RTO, which is no later than the
+     * deadline of any request submitted while the receiver waits.
+     */
+    private long retransmitExpired(long now) throws IOException {
+        long timeout = rtt.getTimeoutNanos();
+        long wait = timeout;
+        boolean expired = false;
+        for (Map.Entry<Short, Pending> entry : outstanding.entrySet()) {
+            Pending p = entry.getValue();
+            if (now - p.deadline >= 0) {
+                if (!expired) {
+                    rtt.backoff(); // Once per scan, however many requests a burst of loss took out
+                    timeout = rtt.getTimeoutNanos();
+                    expired = true;
+                }
+                if (p.transmissions > MAX_RETRANSMITS) {
+                    if (outstanding.remove(entry.getKey()) != null) {
+                        listener.onFailure(entry.getKey(), p.transmissions);
+                        slots.release();
+                    }
+                    continue;
+                }
+                if (WireLog.isEnabled(WireLog.Level.FULL)) {
+                    WireLog.info("Retransmitting request #" + entry.getKey() + " after "
+                            + (now - p.sentAt) / 1_000_000 + " ms (transmission " + (p.transmissions + 1) + ")");
+                }
+                // Only the last fragment goes again; the server asks for whatever else it is missing
+                byte[] last = p.datagrams[p.datagrams.length - 1];
+                try {
+                    socket.send(new DatagramPacket(last, last.length));
+                } catch (PortUnreachableException e) {
+                    // Counted as a lost transmission, so a server that stays down fails the request
+                }
+                p.transmissions++;
+                p.sentAt = now;
+                p.deadline = now + timeout;
+            }
+            wait = Math.min(wait, p.deadline - now);
+        }
+        return Math.max(0, wait);
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * UdpWorkerServer.java
+ * DatagramChannel receive loops for myFirstUDPServer. With several workers each thread owns a channel
+ * bound to the same port with SO_REUSEPORT, so the kernel spreads clients across the sockets and every
+ * core runs its own receive / price / send loop. The only shared state is the catalog snapshot.
+ * Each worker receives into and sends from its own direct buffers, so a datagram is parsed where the
+ * kernel wrote it and the steady state allocates nothing per packet; the reply cache copies into its own
+ * preallocated ring.
+ * @author Jordan Lee
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+public class UdpWorkerServer {
+    private static final int MAX_DATAGRAM_SIZE = 65535; // Receive whole, so oversized requests are seen as such
+    private static final int REASSEMBLY_ENTRIES = 256;
+    private static final int REASSEMBLY_PER_SENDER = 4; // With MAX_MESSAGE_SIZE, at most 4 MB held for one address
+    private static final long REASSEMBLY_TIMEOUT_MILLIS = 5_000;
+
+    private final CatalogWatcher catalogs;
+    private final ReplyCache replies; // Shared by all workers; null when disabled
+    private final UdpReassembler reassembler = new UdpReassembler(REASSEMBLY_ENTRIES, REASSEMBLY_PER_SENDER, REASSEMBLY_TIMEOUT_MILLIS);
+    private final int workers;
+
+    public UdpWorkerServer(CatalogWatcher catalogs, ReplyCache replies, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        }
+        this.catalogs = catalogs;
+        this.replies = replies;
+        this.workers = workers;
+    }
+
+    /**
+     * Binds one channel per worker and serves forever. A single worker binds the port exclusively.
+     * Where the platform has no SO_REUSEPORT the workers all block on a single shared channel instead,
+     * which still overlaps pricing and sending but leaves receive serialized.
+     */
+    public void serve(int port) throws IOException {
+        boolean reusePort = false;
+        if (workers > 1) {
+            try (DatagramChannel probe = DatagramChannel.open()) {
+                reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            }
+        }
+
+        DatagramChannel shared = null;
+        Thread[] threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            DatagramChannel channel;
+            if (reusePort) {
+                channel = DatagramChannel.open();
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(new InetSocketAddress(port));
+            } else {
+                if (shared == null) {
+                    shared = DatagramChannel.open().bind(new InetSocketAddress(port));
+                }
+                channel = shared;
+            }
+            threads[i] = new Thread(new Worker(channel), "udp-worker-" + i);
+            threads[i].start();
+        }
+
+        if (workers == 1) {
+            System.out.println("UDP Server listening on " + port + "...");
+        } else {
+            System.out.println("UDP Server listening on " + port + " with " + workers + " worker(s)"
+                    + (reusePort ? ", one SO_REUSEPORT socket each..." : " sharing one socket (no SO_REUSEPORT)..."));
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * One blocking receive loop with its own buffers and request view. The buffers are direct, so
+     * receive and send go straight between them and the socket without a copy through a temporary
+     * native buffer. Responses to fragmented requests are built in a separate heap buffer that grows
+     * with the order and are sent through the direct one a fragment at a time.
+     */
+    private final class Worker implements Runnable {
+        private final DatagramChannel channel;
+        private final ByteBuffer request = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE).order(ByteOrder.BIG_ENDIAN);
+        private final ByteBuffer response = ByteBuffer.allocateDirect(myFirstUDPServer.RESPONSE_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        private ByteBuffer largeResponse = ByteBuffer.allocate(myFirstUDPServer.RESPONSE_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        private final RequestView view = new RequestView();
+
+        Worker(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Serves datagrams until the channel is closed. A failure while serving one datagram is
+         * logged and only costs that client its reply; it does not stop the worker.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                SocketAddress client = null;
+                try {
+                    request.clear();
+                    client = channel.receive(request);
+                    serve(client, request.position());
+                } catch (ClosedChannelException e) {
+                    WireLog.info("Worker " + Thread.currentThread().getName() + " stopped: " + e);
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    WireLog.info("ERROR: Dropped datagram from " + client + ": " + e);
+                }
+            }
+        }
+
+        /**
+         * Handles the datagram in request[0, length): logs it, prices it against the current catalog
+         * snapshot and sends the reply. A normal request whose TML does not match the received byte
+         * count is answered with Request # | 0xFFFF. Fragments are held until their message is
+         * complete, and a message whose first burst ended with gaps is answered with a request for the
+         * missing fragments. A retransmission of a request still in the reply cache gets the stored
+         * reply, and a request for some fragments of a cached reply gets just those.
+         */
+        private void serve(SocketAddress client, int length) throws IOException {
+            long start = System.nanoTime();
+            if (WireLog.isEnabled(WireLog.Level.FULL)) {
+                WireLog.info("Received packet from " + client);
+            }
+            WireLog.bytes("Request bytes", request, 0, length);
+
+            if (UdpFragments.isResend(request, 0, length)) {
+                resend(client, length);
+                return;
+            }
+
+            ByteBuffer message = request;
+            boolean fragmented = UdpFragments.isFragment(request, 0, length);
+            if (fragmented) {
+                byte[] whole = reassembler.add(client, request, 0, length);
+                if (whole == null) {
+                    // Once the client's burst is over, ask it for whatever did not arrive
+                    short requestNumber = request.getShort(0);
+                    if (reassembler.putResend(client, requestNumber, Long.MAX_VALUE, response)) {
+                        int missing = (response.limit() - 6) / 2;
+                        channel.send(response, client);
+                        if (WireLog.isEnabled(WireLog.Level.FULL)) {
+                            WireLog.info("Asked for " + missing + " missing fragment(s) of request #" + requestNumber + ".");
+                        }
+                    }
+                    return;
+                }
+                message = ByteBuffer.wrap(whole);
+                length = whole.length;
+                if (WireLog.isEnabled(WireLog.Level.FULL)) {
+                    WireLog.info("Reassembled request #" + message.getShort(0) + " (" + length + " bytes).");
+                }
+            }
+
+            // Parse request header in place
+            view.wrap(message, 0, length);
+            short tml = view.getTml();
+
+            // Error: if received bytes != TML, send Request # | -1. A fragmented request has no TML;
+            // its body must end right after the last pair.
+            if (fragmented ? length != 4 + 4 * view.getLineCount() + 2
+                    : length != tml || length > myFirstUDPServer.MAX_REQUEST_SIZE) {
+                sendError(client, view.getRequestNumber(), length);
+                if (!WireLog.isEnabled(WireLog.Level.SUMMARY)) {
+                    // Nothing to log
+                } else if (fragmented) {
+                    WireLog.info("ERROR: Reassembled request (" + length + " bytes) does not end after its last pair. Sent error response.");
+                } else if (length == tml) {
+                    WireLog.info("ERROR: Request of " + length + " bytes is too large to send unfragmented. Sent error response.");
+                } else {
+                    WireLog.info("ERROR: TML (" + tml + ") does not match received byte count (" + length + "). Sent error response.");
+                }
+                return;
+            }
+
+            // Pairs are read in place: Request # (2) | TML (2) | Q1 (2) | C1 (2) | ... | 0xFFFF (2)
+            if (WireLog.isEnabled(WireLog.Level.FULL)) {
+                WireLog.info("Received " + view.getLineCount() + " pair(s).");
+            }
+
+            // A retransmitted request gets exactly the bytes it was sent the first time
+            ByteBuffer cached = (replies == null) ? null
+                    : replies.get(client, message, 0, length, fragmented ? largeResponse : response);
+            if (cached != null) {
+                if (WireLog.isEnabled(WireLog.Level.FULL)) {
+                    WireLog.info("Duplicate of request #" + view.getRequestNumber() + "; resending cached response.");
+                }
+                int cachedLength = cached.position();
+                if (fragmented) {
+                    largeResponse = cached;
+                    UdpFragments.send(channel, client, largeResponse, cachedLength, response);
+                } else {
+                    response.flip();
+                    channel.send(response, client);
+                }
+                ServerMetrics.get().recordRequest(view.getLineCount(), unknownCodes(catalogs.current()), length,
+                        cachedLength, System.nanoTime() - start);
+                return;
+            }
+
+            // Price the whole order against one catalog snapshot
+            Catalog catalog = catalogs.current();
+            ByteBuffer reply;
+            if (fragmented) {
+                largeResponse = myFirstUDPServer.buildLargeResponse(view, catalog, largeResponse);
+                if (!UdpFragments.fits(largeResponse.position())) {
+                    sendError(client, view.getRequestNumber(), length);
+                    if (WireLog.isEnabled(WireLog.Level.SUMMARY)) {
+                        WireLog.info("ERROR: Response to request #" + view.getRequestNumber() + " (" + largeResponse.position()
+                                + " bytes) is too large to fragment. Sent error response.");
+                    }
+                    return;
+                }
+                reply = largeResponse;
+            } else {
+                if (!myFirstUDPServer.buildResponse(view, catalog, response)) {
+                    sendError(client, view.getRequestNumber(), length);
+                    if (WireLog.isEnabled(WireLog.Level.SUMMARY)) {
+                        WireLog.info("ERROR: Response to request #" + view.getRequestNumber()
+                                + " does not fit in one datagram. Sent error response.");
+                    }
+                    return;
+                }
+                reply = response;
+            }
+            int replyLength = reply.position();
+            WireLog.bytes("Response bytes", reply, 0, replyLength);
+            if (replies != null) {
+                replies.put(client, message, 0, length, reply, replyLength);
+            }
+
+            if (fragmented) {
+                UdpFragments.send(channel, client, largeResponse, replyLength, response);
+            } else {
+                response.flip();
+                channel.send(response, client);
+            }
+            ServerMetrics.get().recordRequest(view.getLineCount(), unknownCodes(catalog), length, replyLength,
+                    System.nanoTime() - start);
+        }
+
+        /**
+         * Answers the resend request in request[0, length) from the reply cache. With no cached
+         * fragmented reply to that Request #, nothing is sent and the client retransmits its request.
+         */
+        private void resend(SocketAddress client, int length) throws IOException {
+            short requestNumber = request.getShort(0);
+            ByteBuffer cached = (replies == null) ? null : replies.getReply(client, requestNumber, largeResponse);
+            if (cached == null || !UdpFragments.isFragment(cached, 0, cached.position())) {
+                if (WireLog.isEnabled(WireLog.Level.SUMMARY)) {
+                    WireLog.info("No cached response to resend for request #" + requestNumber + ".");
+                }
+                return;
+            }
+            largeResponse = cached;
+            int sent = UdpFragments.resend(channel, client, largeResponse, largeResponse.position(), request, 0, length, response);
+            if (WireLog.isEnabled(WireLog.Level.FULL)) {
+                WireLog.info("Resent " + sent + " fragment(s) of the response to request #" + requestNumber + ".");
+            }
+        }
+
+        /**
+         * Answers the request of length bytes with Request # | 0xFFFF.
+         */
+        private void sendError(SocketAddress client, short requestNumber, int length) throws IOException {
+            response.clear();
+            response.putShort(requestNumber);
+            response.putShort((short) -1);
+            response.flip();
+            channel.send(response, client);
+            ServerMetrics.get().recordError(length, response.limit());
+        }
+
+        private int unknownCodes(Catalog catalog) {
+            int unknown = 0;
+            for (int i = 0; i < view.getLineCount(); i++) {
+                if (catalog.getPrice(view.getCode(i)) == Catalog.NO_PRICE) {
+                    unknown++;
+                }
+            }
+            return unknown;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous, level-controlled logger for request/response traffic.
+ * The level comes from -Dwire.log=off|summary|full. The default, summary, logs events such as errors
+ * and dropped connections, and counts the messages and bytes passed to bytes() by label, printing
+ * the totals once a second; counting is done in place, so a request costs no allocation or queueing.
+ * Full also logs per-request messages (callers guard those with isEnabled(Level.FULL)) and the
+ * original per-byte hex dumps.
+ * Callers only enqueue records; a background thread does the hex formatting and console writes.
+ * The queue is bounded and lock-free: when it is full the record is dropped and counted rather
+ * than making the caller wait.
+ */
+public final class WireLog {
+    public enum Level { OFF, SUMMARY, FULL }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("wire.log", "summary").toUpperCase());
+    private static final int QUEUE_CAPACITY = Integer.getInteger("wire.log.queue", 8192);
+    private static final long SUMMARY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // "0xAB " for every byte value, so formatting a dump is a table copy per byte
+    private static final char[] HEX = new char[256 * 5];
+
+    private static final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    // flush() handshake: a caller takes a ticket and waits on flushed until the drain thread has
+    // found the queue empty after seeing that ticket, so everything the caller queued is written
+    private static final Object flushed = new Object();
+    private static volatile long flushRequests;   // Changed only while holding flushed
+    private static long flushesDone;              // Guarded by flushed
+    private static final Thread drainer;
+
+    static {
+        char[] digits = "0123456789ABCDEF".toCharArray();
+        for (int b = 0; b < 256; b++) {
+            HEX[b * 5] = '0';
+            HEX[b * 5 + 1] = 'x';
+            HEX[b * 5 + 2] = digits[b >> 4];
+            HEX[b * 5 + 3] = digits[b & 0xF];
+            HEX[b * 5 + 4] = ' ';
+        }
+        if (LEVEL != Level.OFF) {
+            drainer = new Thread(WireLog::drain, "wire-log");
+            drainer.setDaemon(true);
+            drainer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(WireLog::flush));
+        } else {
+            drainer = null;
+        }
+    }
+
+    private static final class Record {
+        final String text;  // Message, or label of a byte dump
+        final byte[] data;  // Copy of the dumped bytes, null for messages
+        final int length;   // Byte count of a dump, -1 for messages
+
+        Record(String text, byte[] data, int length) {
+            this.text = text;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Summary-level totals for one bytes() label since they were last printed.
+     */
+    private static final class Counter {
+        final LongAdder messages = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    private WireLog() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level != Level.OFF && LEVEL.compareTo(level) >= 0;
+    }
+
+    /**
+     * Logs a one-line message at summary level and above.
+     */
+    public static void info(String message) {
+        if (isEnabled(Level.SUMMARY)) {
+            offer(new Record(message, null, -1));
+        }
+    }
+
+    /**
+     * Logs bytes: a full hex dump at full level; at summary level just adds one message of length
+     * bytes to the label's totals. The bytes are copied, so the caller may reuse its buffer as soon
+     * as this returns.
+     */
+    public static void bytes(String label, byte[] data, int offset, int length) {
+        if (isEnabled(Level.FULL)) {
+            byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+            offer(new Record(label, copy, length));
+        } else if (isEnabled(Level.SUMMARY)) {
+            count(label, length);
+        }
+    }
+
+    /**
+     * Same as bytes(String, byte[], int, int) for buffer[offset, offset + length), using absolute reads.
+     */
+    public static void bytes(String label, ByteBuffer buffer, int offset, int length) {
+        if (isEnabled(Level.FULL)) {
+            byte[] copy = new byte[length];
+            buffer.get(offset, copy);
+            offer(new Record(label, copy, length));
+        } else if (isEnabled(Level.SUMMARY)) {
+            count(label, length);
+        }
+    }
+
+    private static void count(String label, int length) {
+        Counter counter = counters.get(label);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(label, l -> new Counter());
+        }
+        counter.messages.increment();
+        counter.bytes.add(length);
+    }
+
+    /**
+     * Number of records dropped because the queue was full.
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits until every record queued so far has been written, along with the summary totals.
+     * Meant for interactive clients that want the log to appear before their next prompt, never
+     * for a server's request path.
+     */
+    public static void flush() {
+        if (drainer == null) {
+            return;
+        }
+        synchronized (flushed) {
+            long ticket = ++flushRequests;
+            LockSupport.unpark(drainer);
+            try {
+                while (flushesDone < ticket && drainer.isAlive()) {
+                    flushed.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void offer(Record record) {
+        int n;
+        do {
+            n = queued.get();
+            if (n >= QUEUE_CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!queued.compareAndSet(n, n + 1));
+        queue.offer(record);
+    }
+
+    private static void drain() {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        char[] line = new char[1024];
+        long reportedDrops = 0;
+        long served = 0;
+        long lastSummary = System.nanoTime();
+        while (true) {
+            long requested = flushRequests; // Read before polling, so an empty poll covers the ticket
+            Record record = queue.poll();
+            try {
+                if (record != null) {
+                    out.write(record.text);
+                    if (record.data != null) {
+                        out.write(": ");
+                        if (line.length < record.length * 5) {
+                            line = new char[record.length * 5];
+                        }
+                        for (int i = 0; i < record.length; i++) {
+                            System.arraycopy(HEX, (record.data[i] & 0xFF) * 5, line, i * 5, 5);
+                        }
+                        out.write(line, 0, record.length * 5);
+                    }
+                    out.write(System.lineSeparator());
+                    queued.decrementAndGet();
+                    continue;
+                }
+
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    out.write("WARNING: wire log dropped " + (drops - reportedDrops) + " record(s)" + System.lineSeparator());
+                    reportedDrops = drops;
+                }
+                long now = System.nanoTime();
+                if (requested != served || now - lastSummary >= SUMMARY_INTERVAL_NANOS) {
+                    writeSummary(out, (now - lastSummary) / 1e9);
+                    lastSummary = now;
+                }
+                out.flush();
+            } catch (IOException e) {
+                // Console is gone; keep draining so callers never back up
+            }
+            if (requested != served) {
+                served = requested;
+                synchronized (flushed) {
+                    flushesDone = served;
+                    flushed.notifyAll();
+                }
+            }
+            if (flushRequests == served) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private static void writeSummary(Writer out, double seconds) throws IOException {
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            long messages = entry.getValue().messages.sumThenReset();
+            long bytes = entry.getValue().bytes.sumThenReset();
+            if (messages > 0) {
+                out.write(String.format("%s: %d message(s), %d byte(s) in %.1f s%n", entry.getKey(), messages, bytes, seconds));
+            }
+        }
+    }
+}
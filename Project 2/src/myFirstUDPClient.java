@@ -3,165 +3,357 @@
  * @author Jordan Lee
  */
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.PortUnreachableException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
 
 public class myFirstUDPClient {
-    public static void main(String[] args) throws Exception {
-        if (args.length != 2) {
-            throw new IllegalArgumentException("Parameter(s): <Destination> <Port>");
+    /**
+     * Prints the response table if the server's TC matches the lines, otherwise an error.
+     * A reassembled fragmented response (TML = 0xFFFE) has 2-byte name lengths; see UdpFragments.
+     */
+    static void printResponse(byte[] responseBytes) {
+        // Parse response from received datagram
+        ByteBuffer respBuffer = ByteBuffer.wrap(responseBytes).order(ByteOrder.BIG_ENDIAN);
+
+        short responseNumber = respBuffer.getShort();
+        short responseTml = respBuffer.getShort();
+        boolean large = (responseTml == UdpFragments.MARKER);
+
+        // Check for error response: Request # | -1 (only 4 bytes)
+        if (responseTml == -1) {
+            System.out.println("Error: the total cost in the response does not match the total computed by the client.");
+            return;
         }
 
-        InetAddress addr = InetAddress.getByName(args[0]);
-        int port = Integer.parseInt(args[1]);
-        DatagramSocket socket = new DatagramSocket();
-        socket.setSoTimeout(5000); // 5 second timeout for lost packets
+        int TC = respBuffer.getInt();
 
-        System.out.println("UDP Client ready to send to " + addr + ":" + port);
+        int computedTC = 0;
+        ArrayList<String[]> rows = new ArrayList<>();
+        int itemNum = 1;
+        while (respBuffer.remaining() >= 1) {
+            int L1;
+            if (large) {
+                L1 = respBuffer.getShort(); // L_i is 2 bytes
+                if (L1 == -1) break; // hit 0xFFFF terminator
+            } else {
+                L1 = respBuffer.get() & 0xFF; // L_i is 1 byte (unsigned)
+                if (L1 == 0xFF) break; // hit 0xFFFF terminator
+            }
 
-        Random rand = new Random();
-        Scanner sc = new Scanner(System.in);
-        int requestNumber = rand.nextInt(1000) + 1000; // Random starting value between 1000 and 1999
+            byte[] nameBytes = new byte[L1];
+            respBuffer.get(nameBytes);
+            String itemName = new String(nameBytes);
+
+            short CS1 = respBuffer.getShort(); // unit price
+            short Q1 = respBuffer.getShort();  // quantity
+
+            int lineCost = CS1 * Q1;
+            computedTC += lineCost;
+
+            rows.add(new String[]{String.valueOf(itemNum++), itemName, "$" + CS1, String.valueOf(Q1), "$" + lineCost});
+        }
+
+        if (computedTC != TC) {
+            System.out.println("Error: the total cost in the response does not match the total computed by the client.");
+        } else {
+            // Print table only if TC check is successful
+            String fmt = "| %-6s | %-20s | %-9s | %-8s | %-13s |%n";
+            String divider = "+--------+----------------------+-----------+----------+---------------+";
+            System.out.println(divider);
+            System.out.printf(fmt, "Item #", "Description", "Unit Cost", "Quantity", "Cost Per Item");
+            System.out.println(divider);
+            for (String[] row : rows) {
+                System.out.printf(fmt, row[0], row[1], row[2], row[3], row[4]);
+                System.out.println(divider);
+            }
+            System.out.printf(fmt, "", "", "", "Total", "$" + computedTC);
+            System.out.println(divider);
+        }
+    }
 
+    /**
+     * Prompts for one order. Returns an empty list when the user submits no pairs.
+     */
+    private static ArrayList<QuantityCodePair> readOrder(Scanner sc) {
+        ArrayList<QuantityCodePair> pairs = new ArrayList<>();
+
+        System.out.println("\nEnter quantity/code pairs. Enter -1 for quantity to submit or quit.");
         while (true) {
-            ArrayList<QuantityCodePair> pairs = new ArrayList<>();
-
-            System.out.println("\nEnter quantity/code pairs. Enter -1 for quantity to submit or quit.");
-            while (true) {
-                System.out.print("Enter quantity: ");
-                short quantity = sc.nextShort();
-                if (quantity == -1) break;
-                if (quantity <= 0) {
-                    System.out.println("ERROR: Quantity must be between 0-32767. Please re-enter.");
-                    continue;
+            System.out.print("Enter quantity: ");
+            short quantity = sc.nextShort();
+            if (quantity == -1) break;
+            if (quantity <= 0) {
+                System.out.println("ERROR: Quantity must be between 0-32767. Please re-enter.");
+                continue;
+            }
+            System.out.print("Enter code: ");
+            short code = sc.nextShort();
+            if (code < 0) {
+                System.out.println("ERROR: Code must be between 0-32767. Please re-enter.");
+                continue;
+            }
+            pairs.add(new QuantityCodePair(quantity, code));
+        }
+        return pairs;
+    }
+
+    /**
+     * Load-mode transport over one connected datagram socket. Without a load window exchange keeps
+     * one request in flight at a time. A lost request is retransmitted on the adaptive timeout, up to UdpRequestWindow.MAX_RETRANSMITS
+     * times. Late answers to earlier transmissions or requests are skipped by Request #.
+     * Orders too large for one datagram are sent and answered as fragments. The timeout restarts with
+     * every fragment of the response, fragments missing at the end of a burst or that stop coming are
+     * asked for again, and request fragments the server asks for are sent again. A retransmission of
+     * a fragmented order is just its last fragment, which prompts the server to ask for the rest.
+     * With a load window, send and receive go through a UdpRequestWindow instead, which does the
+     * same per request while several are in flight; receive waits for the given Request #.
+     */
+    private static final class LoadConnection implements LoadGenerator.Connection {
+        private static final long RESEND_IDLE_NANOS = 1_000_000L;
+        private static final int PIPELINE_WINDOW = 1024; // Only a bound; LoadGenerator limits what is in flight
+
+        private final DatagramSocket socket;
+        private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+        private final DatagramPacket receivePacket = new DatagramPacket(new byte[65535], 65535);
+        private final ByteBuffer received = ByteBuffer.wrap(receivePacket.getData());
+        private final ByteBuffer resendRequest = ByteBuffer.allocate(UdpFragments.MAX_DATAGRAM_SIZE);
+        private final RttEstimator rtt = new RttEstimator();
+        private final UdpReassembler reassembler = new UdpReassembler(1, 5_000);
+        private final Map<Short, Boolean> completed = new HashMap<>(); // Guarded by itself
+        private UdpRequestWindow pipeline; // Created by the first send
+
+        LoadConnection(InetAddress addr, int port) throws IOException {
+            socket = new DatagramSocket();
+            socket.connect(addr, port);
+        }
+
+        @Override
+        public boolean exchange(byte[] request, int length) throws IOException {
+            byte[][] fragments = (length > UdpFragments.MAX_NORMAL_REQUEST_SIZE) ? UdpFragments.split(request, length) : null;
+            short requestNumber = (short) (((request[0] & 0xFF) << 8) | (request[1] & 0xFF));
+            for (int transmissions = 1; ; transmissions++) {
+                long sentAt = System.nanoTime();
+                if (fragments == null) {
+                    sendPacket.setData(request, 0, length);
+                    socket.send(sendPacket);
+                } else if (transmissions == 1) {
+                    for (byte[] fragment : fragments) {
+                        sendPacket.setData(fragment);
+                        socket.send(sendPacket);
+                    }
+                } else {
+                    sendPacket.setData(fragments[fragments.length - 1]); // The server asks for the rest
+                    socket.send(sendPacket);
+                }
+                long deadline = sentAt + rtt.getTimeoutNanos();
+                long now;
+                while ((now = System.nanoTime()) - deadline < 0) {
+                    boolean partial = reassembler.size() > 0;
+                    long wait = partial ? Math.min(deadline - now, RESEND_IDLE_NANOS) : deadline - now;
+                    socket.setSoTimeout((int) Math.max(1, (wait + 999_999) / 1_000_000));
+                    receivePacket.setLength(receivePacket.getData().length);
+                    try {
+                        socket.receive(receivePacket);
+                    } catch (SocketTimeoutException | PortUnreachableException e) {
+                        // Lost, or the server is not up (yet): ask for what is missing, else wait out the timeout
+                        if (partial && reassembler.putResend(socket.getRemoteSocketAddress(), requestNumber,
+                                RESEND_IDLE_NANOS, resendRequest)) {
+                            sendPacket.setData(resendRequest.array(), 0, resendRequest.limit());
+                            socket.send(sendPacket);
+                        }
+                        continue;
+                    }
+                    byte[] data = receivePacket.getData();
+                    if (UdpFragments.isResend(received, 0, receivePacket.getLength())) {
+                        // The server is missing some of the request's fragments
+                        if (fragments != null && received.getShort(0) == requestNumber
+                                && UdpFragments.resend(socket, fragments, received, 0, receivePacket.getLength()) > 0) {
+                            deadline = System.nanoTime() + rtt.getTimeoutNanos();
+                        }
+                        continue;
+                    }
+                    if (UdpFragments.isFragment(received, 0, receivePacket.getLength())) {
+                        data = reassembler.add(receivePacket.getSocketAddress(), received, 0, receivePacket.getLength());
+                        if (data == null) {
+                            if (received.getShort(0) == requestNumber) {
+                                deadline = System.nanoTime() + rtt.getTimeoutNanos(); // Still arriving
+                                if (reassembler.putResend(receivePacket.getSocketAddress(), requestNumber,
+                                        RESEND_IDLE_NANOS, resendRequest)) {
+                                    sendPacket.setData(resendRequest.array(), 0, resendRequest.limit());
+                                    socket.send(sendPacket);
+                                }
+                            }
+                            continue; // Wait for the rest of the response
+                        }
+                    }
+                    if (receivePacket.getLength() >= 4 && data[0] == request[0] && data[1] == request[1]) {
+                        if (transmissions == 1) {
+                            rtt.sample(System.nanoTime() - sentAt);
+                        } else {
+                            rtt.clearBackoff();
+                        }
+                        return !(data[2] == (byte) 0xFF && data[3] == (byte) 0xFF); // TML = -1 is an error response
+                    }
                 }
-                System.out.print("Enter code: ");
-                short code = sc.nextShort();
-                if (code < 0) {
-                    System.out.println("ERROR: Code must be between 0-32767. Please re-enter.");
-                    continue;
+                if (transmissions > UdpRequestWindow.MAX_RETRANSMITS) {
+                    return false;
                 }
-                pairs.add(new QuantityCodePair(quantity, code));
+                rtt.backoff();
             }
+        }
 
-            // If no pairs were entered, treat as quit
-            if (pairs.isEmpty()) {
-                System.out.println("No pairs entered. Exiting.");
-                break;
-            }
+        @Override
+        public boolean canPipeline() {
+            return true;
+        }
 
-            // Build byte array to send
-            // Request # (2 bytes) ; TML (2 bytes) ; Q1 (2 bytes) ; C1 (2 bytes) ; Q2 ; C2 ; ... ; 0xFFFF
-            byte[] requestBytes = new byte[2 + 2 + pairs.size() * 4 + 2];
-            requestBytes[0] = (byte) (requestNumber >> 8); // Request # high byte
-            requestBytes[1] = (byte) (requestNumber & 0xFF); // Request # low byte
-            requestBytes[2] = (byte) (requestBytes.length >> 8); // TML high byte
-            requestBytes[3] = (byte) (requestBytes.length & 0xFF); // TML low byte
-            for (int i = 0; i < pairs.size(); i++) {
-                QuantityCodePair pair = pairs.get(i);
-                int offset = 4 + i * 4;
-                requestBytes[offset]     = (byte) (pair.getQuantity() >> 8);
-                requestBytes[offset + 1] = (byte) (pair.getQuantity() & 0xFF);
-                requestBytes[offset + 2] = (byte) (pair.getCode() >> 8);
-                requestBytes[offset + 3] = (byte) (pair.getCode() & 0xFF);
-            }
-            requestBytes[requestBytes.length - 2] = (byte) 0xFF;
-            requestBytes[requestBytes.length - 1] = (byte) 0xFF;
+        @Override
+        public void send(byte[] request, int length) throws IOException {
+            if (pipeline == null) {
+                pipeline = new UdpRequestWindow(socket, PIPELINE_WINDOW, new UdpRequestWindow.Listener() {
+                    @Override
+                    public void onResponse(short requestNumber, byte[] response) {
+                        complete(requestNumber, !(response[2] == (byte) 0xFF && response[3] == (byte) 0xFF));
+                    }
 
-            // Log the request being sent
-            System.out.println("Sending request #" + requestNumber + " with " + pairs.size() + " pair(s) to server:");
-            System.out.print("Request bytes: ");
-            for (byte b : requestBytes) {
-                System.out.printf("0x%02X ", b);
+                    @Override
+                    public void onFailure(short requestNumber, int transmissions) {
+                        complete(requestNumber, false);
+                    }
+                });
             }
-            System.out.println();
+            try {
+                pipeline.submit(Arrays.copyOf(request, length)); // Kept for retransmission
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
 
-            // Send request via UDP
-            DatagramPacket sendPacket = new DatagramPacket(requestBytes, requestBytes.length, addr, port);
-            socket.send(sendPacket);
-            System.out.println("Sent " + pairs.size() + (pairs.size() > 1 ? " pairs " : " pair ") + "to server.");
+        @Override
+        public boolean receive(short requestNumber) throws IOException {
+            synchronized (completed) {
+                try {
+                    while (!completed.containsKey(requestNumber)) {
+                        completed.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                return completed.remove(requestNumber);
+            }
+        }
 
-            // Wait for server response
-            byte[] receiveBuffer = new byte[1024];
-            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-            try {
-                socket.receive(receivePacket);
-            } catch (SocketTimeoutException e) {
-                System.out.println("ERROR: No response from server (timed out after 5 seconds).");
-                requestNumber++;
-                continue;
+        private void complete(short requestNumber, boolean ok) {
+            synchronized (completed) {
+                completed.put(requestNumber, ok);
+                completed.notifyAll();
             }
+        }
 
-            // Print entire response in hex
-            System.out.print("Received response: ");
-            for (int i = 0; i < receivePacket.getLength(); i++) {
-                System.out.printf("0x%02X ", receivePacket.getData()[i]);
+        @Override
+        public void close() {
+            if (pipeline != null) {
+                pipeline.close(); // Closes the socket too, and stops the receiver quietly
+            } else {
+                socket.close();
             }
-            System.out.println();
+        }
+    }
 
-            // Parse response from received datagram
-            ByteBuffer respBuffer = ByteBuffer.wrap(receivePacket.getData(), 0, receivePacket.getLength())
-                    .order(ByteOrder.BIG_ENDIAN);
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || (args.length > 3 && !args[2].equals("load"))) {
+            throw new IllegalArgumentException("Parameter(s): <Destination> <Port> [<Window> | " + LoadGenerator.USAGE + "]");
+        }
 
-            short responseNumber = respBuffer.getShort();
-            short responseTml = respBuffer.getShort();
+        InetAddress addr = InetAddress.getByName(args[0]);
+        int port = Integer.parseInt(args[1]);
+        if (args.length > 2 && args[2].equals("load")) {
+            LoadGenerator.run(args, 3, () -> new LoadConnection(addr, port));
+            return;
+        }
+        int window = (args.length == 3) ? Integer.parseInt(args[2]) : 1;
 
-            // Check for error response: Request # | -1 (only 4 bytes)
-            if (responseTml == -1) {
-                System.out.println("Error: the total cost in the response does not match the total computed by the client.");
-                requestNumber++;
-                continue;
+        // Lost requests are retransmitted on an RTT-based timeout; see UdpRequestWindow
+        DatagramSocket socket = new DatagramSocket();
+        socket.connect(addr, port);
+        UdpRequestWindow requests = new UdpRequestWindow(socket, window, new UdpRequestWindow.Listener() {
+            @Override
+            public void onResponse(short requestNumber, byte[] response) {
+                synchronized (System.out) {
+                    // Print entire response in hex
+                    WireLog.bytes("Received response", response, 0, response.length);
+                    WireLog.flush();
+                    if (window > 1) {
+                        System.out.println("Response for request #" + requestNumber + ":");
+                    }
+                    printResponse(response);
+                }
             }
 
-            int TC = respBuffer.getInt();
+            @Override
+            public void onFailure(short requestNumber, int transmissions) {
+                synchronized (System.out) {
+                    System.out.println("ERROR: No response from server for request #" + requestNumber
+                            + " after " + transmissions + " transmission(s).");
+                }
+            }
+        });
 
-            int computedTC = 0;
-            ArrayList<String[]> rows = new ArrayList<>();
-            int itemNum = 1;
-            while (respBuffer.remaining() >= 1) {
-                int L1 = respBuffer.get() & 0xFF; // L_i is 1 byte (unsigned)
-                if (L1 == 0xFF) break; // hit 0xFFFF terminator
+        System.out.println("UDP Client ready to send to " + addr + ":" + port
+                + (window > 1 ? " with up to " + window + " requests in flight" : ""));
+
+        Random rand = new Random();
+        Scanner sc = new Scanner(System.in);
+        int requestNumber = rand.nextInt(1000) + 1000; // Random starting value between 1000 and 1999
+
+        while (true) {
+            ArrayList<QuantityCodePair> pairs = readOrder(sc);
 
-                byte[] nameBytes = new byte[L1];
-                respBuffer.get(nameBytes);
-                String itemName = new String(nameBytes);
+            // If no pairs were entered, treat as quit
+            if (pairs.isEmpty()) {
+                System.out.println("No pairs entered. Exiting.");
+                break;
+            }
 
-                short CS1 = respBuffer.getShort(); // unit price
-                short Q1 = respBuffer.getShort();  // quantity
+            byte[] requestBytes = RequestView.encode(requestNumber, pairs);
 
-                int lineCost = CS1 * Q1;
-                computedTC += lineCost;
+            // Log the request being sent
+            synchronized (System.out) {
+                System.out.println("Sending request #" + requestNumber + " with " + pairs.size() + " pair(s) to server:");
+                WireLog.bytes("Request bytes", requestBytes, 0, requestBytes.length);
+                WireLog.flush();
+            }
 
-                rows.add(new String[]{String.valueOf(itemNum++), itemName, "$" + CS1, String.valueOf(Q1), "$" + lineCost});
+            // Send request via UDP; blocks while the window is full
+            requests.submit(requestBytes);
+            synchronized (System.out) {
+                System.out.println("Sent " + pairs.size() + (pairs.size() > 1 ? " pairs " : " pair ") + "to server.");
             }
 
-            if (computedTC != TC) {
-                System.out.println("Error: the total cost in the response does not match the total computed by the client.");
-            } else {
-                // Print table only if TC check is successful
-                String fmt = "| %-6s | %-20s | %-9s | %-8s | %-13s |%n";
-                String divider = "+--------+----------------------+-----------+----------+---------------+";
-                System.out.println(divider);
-                System.out.printf(fmt, "Item #", "Description", "Unit Cost", "Quantity", "Cost Per Item");
-                System.out.println(divider);
-                for (String[] row : rows) {
-                    System.out.printf(fmt, row[0], row[1], row[2], row[3], row[4]);
-                    System.out.println(divider);
-                }
-                System.out.printf(fmt, "", "", "", "Total", "$" + computedTC);
-                System.out.println(divider);
+            // Stop-and-wait: the response (or failure) is printed before the next prompt
+            if (window == 1) {
+                requests.drain();
             }
 
             requestNumber++;
         }
 
-        socket.close();
+        requests.drain(); // Every response is in
+        requests.close();
     }
 }
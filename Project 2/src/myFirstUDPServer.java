@@ -3,153 +3,121 @@
  * @author Jordan Lee
  */
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 
 public class myFirstUDPServer {
-    private static Map<Short, Item> loadCSV() throws IOException {
-        Map<Short, Item> catalog = new HashMap<>();
-        try (BufferedReader br = new BufferedReader(new FileReader("data.csv"))) {
-            String line;
-            boolean firstLine = true;
-            while ((line = br.readLine()) != null) {
-                if (firstLine) {
-                    // Strip UTF-8 BOM if present
-                    if (line.startsWith("\uFEFF")) {
-                        line = line.substring(1);
-                    }
-                    firstLine = false;
+    static final int MAX_REQUEST_SIZE = 1024;
+    // 65,535 less the IPv4 and UDP headers. 254 lines of 1 + 254 + 2 + 2 bytes each would need more,
+    // so buildResponse checks every line against it.
+    static final int MAX_DATAGRAM_PAYLOAD = 65_507;
+    static final int RESPONSE_BUFFER_SIZE = MAX_DATAGRAM_PAYLOAD;
+    private static final byte[] NOT_AVAILABLE = Catalog.NOT_AVAILABLE.getBytes();
+    private static final int REPLY_CACHE_ENTRIES = Integer.getInteger("reply.cache", 4096);      // 0 turns the cache off
+    private static final int REPLY_CACHE_BYTES = Integer.getInteger("reply.cache.bytes", 16 << 20);
+    private static final long REPLY_CACHE_TTL_MILLIS = Long.getLong("reply.cache.ttl", 30_000); // Outlasts the client's retries
+
+    /**
+     * Build response into the caller's reusable buffer, leaving its position at the end of the datagram:
+     * Request # (2) | TML (2) | TC (4) | L1 (1) | D1 (L1) | CS1 (2) | Q1 (2) | ... | 0xFFFF (2)
+     * Unknown codes are answered with the catalog's "Article Not Available" fragment.
+     * Returns false, with the buffer's contents undefined, if the response would not fit in the
+     * buffer, which is never larger than one datagram.
+     */
+    static boolean buildResponse(RequestView request, Catalog catalog, ByteBuffer response) {
+        // TML and TC are filled in once every line has been copied
+        response.clear();
+        response.putShort(request.getRequestNumber());
+        response.putShort((short) 0);
+        response.putInt(0);
+        for (int i = 0; i < request.getLineCount(); i++) {
+            short quantity = request.getQuantity(i);
+            short code = request.getCode(i);
+            if (response.remaining() < catalog.udpFragmentLength(code) + 2 + 2) {
+                return false;
+            }
+            catalog.putUdpFragment(code, response); // L_i ; D_i ; CS_i
+            response.putShort(quantity);            // Q_i
+        }
+        response.putShort((short) -1); // 0xFFFF terminator
+        response.putShort(2, (short) response.position());
+        response.putInt(4, PricingKernel.total(request, catalog));
+        return true;
+    }
+
+    /**
+     * Builds the response to a fragmented request (see UdpFragments) into response, growing it as
+     * needed, and returns the buffer with its position at the end of the message:
+     * Request # (2) | 0xFFFE (2) | TC (4) | L1 (2) | D1 (L1) | CS1 (2) | Q1 (2) | ... | 0xFFFF (2)
+     * Lines use the TCP layout, so names are not cut to 255 bytes. Unknown codes are answered with
+     * "Article Not Available" and a unit cost of 0, as in the normal response.
+     */
+    static ByteBuffer buildLargeResponse(RequestView request, Catalog catalog, ByteBuffer response) {
+        // TC is filled in once every line has been copied
+        response.clear();
+        response.putShort(request.getRequestNumber());
+        response.putShort(UdpFragments.MARKER);
+        response.putInt(0);
+        for (int i = 0; i < request.getLineCount(); i++) {
+            short quantity = request.getQuantity(i);
+            short code = request.getCode(i);
+            if (catalog.contains(code)) {
+                int lineLength = catalog.tcpFragmentLength(code) + 2;
+                if (response.remaining() < lineLength + 2) {
+                    response = grow(response, lineLength + 2);
                 }
-                String[] parts = line.split(",", 3);
-                if (parts.length < 3) continue;
-                short id = Short.parseShort(parts[0].trim());
-                String name = parts[1].trim();
-                short price = Short.parseShort(parts[2].trim());
-                catalog.put(id, new Item(id, name, price));
+                catalog.putTcpFragment(code, response); // L_i ; D_i ; CS_i
+            } else {
+                int lineLength = 2 + NOT_AVAILABLE.length + 2 + 2;
+                if (response.remaining() < lineLength + 2) {
+                    response = grow(response, lineLength + 2);
+                }
+                response.putShort((short) NOT_AVAILABLE.length);
+                response.put(NOT_AVAILABLE);
+                response.putShort((short) 0);
             }
+            response.putShort(quantity); // Q_i
         }
-        return catalog;
+        response.putShort((short) -1); // 0xFFFF terminator
+        response.putInt(4, PricingKernel.total(request, catalog));
+        return response;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed))
+                .order(ByteOrder.BIG_ENDIAN);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
-            throw new IllegalArgumentException("Parameter(s): <Port>");
+        if (args.length < 1 || args.length > 3) {
+            throw new IllegalArgumentException("Parameter(s): <Port> [single | workers [<Threads>]]");
         }
 
-        // Load catalog before receiving packets
-        Map<Short, Item> catalog = loadCSV();
+        // Load catalog before receiving packets, then pick up edits to it while running.
+        // -Dcatalog=<file>.cat maps a binary catalog built by CatalogCompiler instead of parsing data.csv.
+        CatalogWatcher catalogs = new CatalogWatcher(System.getProperty("catalog", "data.csv"));
+        catalogs.start();
+        ServerMetrics.register("udp");
+        System.out.println("Pricing with the " + PricingKernel.describe());
 
         int port = Integer.parseInt(args[0]);
-        DatagramSocket socket = new DatagramSocket(port);
-        System.out.println("UDP Server listening on " + port + "...");
-
-        byte[] receiveBuffer = new byte[1024];
-
-        while (true) {
-            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-            socket.receive(receivePacket);
-
-            byte[] bytes = new byte[receivePacket.getLength()];
-            System.arraycopy(receivePacket.getData(), 0, bytes, 0, receivePacket.getLength());
-
-            System.out.println("Received packet from " + receivePacket.getAddress() + ":" + receivePacket.getPort());
-
-            // Log request byte-by-byte
-            System.out.print("Request bytes: ");
-            for (byte b : bytes) {
-                System.out.printf("0x%02X ", b);
-            }
-            System.out.println();
-
-            // Parse request header
-            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
-            short requestNumber = buffer.getShort();
-            short tml = buffer.getShort();
-
-            // Error: if received bytes != TML, send Request # | -1
-            if (receivePacket.getLength() != tml) {
-                byte[] errorResponse = new byte[4];
-                errorResponse[0] = (byte) (requestNumber >> 8);
-                errorResponse[1] = (byte) (requestNumber & 0xFF);
-                errorResponse[2] = (byte) 0xFF;
-                errorResponse[3] = (byte) 0xFF;
-                DatagramPacket errorPacket = new DatagramPacket(errorResponse, errorResponse.length,
-                        receivePacket.getAddress(), receivePacket.getPort());
-                socket.send(errorPacket);
-                System.out.println("ERROR: TML (" + tml + ") does not match received byte count (" + receivePacket.getLength() + "). Sent error response.");
-                continue;
-            }
-
-            // Decode pairs: Request # (2) | TML (2) | Q1 (2) | C1 (2) | ... | 0xFFFF (2)
-            ArrayList<QuantityCodePair> pairs = new ArrayList<>();
-            while (buffer.remaining() >= 2) {
-                short quantity = buffer.getShort();
-                if (quantity == -1) break; // 0xFFFF terminator
-                if (buffer.remaining() < 2) break;
-                short code = buffer.getShort();
-                pairs.add(new QuantityCodePair(quantity, code));
-            }
-
-            System.out.println("Received " + pairs.size() + " pair(s).");
-
-            // Build response:
-            // Request # (2) | TML (2) | TC (4) | L1 (1) | D1 (L1) | CS1 (2) | Q1 (2) | ... | 0xFFFF (2)
-            String notAvailable = "Article Not Available";
-
-            // Calculate response TML
-            int responseTml = 2 + 2 + 4; // Request# + TML + TC
-            for (QuantityCodePair pair : pairs) {
-                Item item = catalog.get(pair.getCode());
-                String desc = (item != null) ? item.getName() : notAvailable;
-                responseTml += 1 + desc.getBytes().length + 2 + 2; // L_i (1 byte) + D_i + CS_i + Q_i
-            }
-            responseTml += 2; // 0xFFFF terminator
-
-            // Compute TC
-            int TC = 0;
-            for (QuantityCodePair pair : pairs) {
-                Item item = catalog.get(pair.getCode());
-                if (item != null) {
-                    TC += pair.getQuantity() * item.getPrice();
-                }
-            }
-
-            // Build response buffer
-            ByteBuffer response = ByteBuffer.allocate(responseTml).order(ByteOrder.BIG_ENDIAN);
-            response.putShort(requestNumber);
-            response.putShort((short) responseTml);
-            response.putInt(TC);
-            for (QuantityCodePair pair : pairs) {
-                Item item = catalog.get(pair.getCode());
-                String desc = (item != null) ? item.getName() : notAvailable;
-                short unitCost = (item != null) ? item.getPrice() : 0;
-                response.put((byte) desc.getBytes().length); // L_i (1 byte)
-                response.put(desc.getBytes());                // D_i
-                response.putShort(unitCost);                  // CS_i
-                response.putShort(pair.getQuantity());        // Q_i
-            }
-            response.putShort((short) -1); // 0xFFFF terminator
-
-            // Send response
-            byte[] responseBytes = response.array();
-            DatagramPacket sendPacket = new DatagramPacket(responseBytes, responseBytes.length,
-                    receivePacket.getAddress(), receivePacket.getPort());
-            socket.send(sendPacket);
-
-            // Log response byte-by-byte
-            System.out.print("Response bytes: ");
-            for (byte b : responseBytes) {
-                System.out.printf("0x%02X ", b);
-            }
-            System.out.println();
+        String mode = (args.length >= 2) ? args[1] : "single";
+        ReplyCache replies = (REPLY_CACHE_ENTRIES > 0) ? new ReplyCache(REPLY_CACHE_ENTRIES, REPLY_CACHE_BYTES, REPLY_CACHE_TTL_MILLIS) : null;
+
+        switch (mode) {
+            case "single":
+                new UdpWorkerServer(catalogs, replies, 1).serve(port);
+                break;
+            case "workers":
+                int threads = (args.length == 3) ? Integer.parseInt(args[2])
+                        : Runtime.getRuntime().availableProcessors();
+                new UdpWorkerServer(catalogs, replies, threads).serve(port);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
         }
     }
 }
@@ -0,0 +1,51 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * PricingKernel on the incubating Vector API: each step loads a vector of quantities and one of
+ * unit prices, multiplies them and adds the line costs into int lanes. Unknown codes price at
+ * NO_PRICE (-1), which is raised to 0 so those lanes add nothing.
+ *
+ * A line cost is at most 32,768 * 32,767 in magnitude, under 2^30, so it fits an int lane but a
+ * handful of them do not. Each cost is split into its low 16 bits (0..65535) and the rest shifted
+ * down (-16,384..16,383), which are summed in separate lanes and folded into a long total often
+ * enough that neither the lanes nor their int reduction can overflow.
+ * Loaded reflectively by PricingKernel; needs --add-modules jdk.incubator.vector to build and run.
+ * Run with -Dpricing.scalar=true to keep PricingKernel on its scalar loop instead.
+ */
+public class VectorPricing implements PricingKernel.Kernel {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    // Steps before a fold: keeps lanes * steps * 0xFFFF, the largest possible low-half sum, in an int
+    private static final int FOLD_STEPS = Integer.MAX_VALUE / 0xFFFF / SPECIES.length();
+
+    @Override
+    public long total(int[] quantities, int[] prices, int count) {
+        int lanes = SPECIES.length();
+        int bound = SPECIES.loopBound(count);
+        IntVector zero = IntVector.zero(SPECIES);
+        long total = 0;
+        int i = 0;
+        while (i < bound) {
+            int end = Math.min(bound, i + FOLD_STEPS * lanes);
+            IntVector low = zero;
+            IntVector high = zero;
+            for (; i < end; i += lanes) {
+                IntVector price = IntVector.fromArray(SPECIES, prices, i).max(0);
+                IntVector cost = IntVector.fromArray(SPECIES, quantities, i).mul(price);
+                low = low.add(cost.and(0xFFFF));
+                high = high.add(cost.lanewise(VectorOperators.ASHR, 16));
+            }
+            total += ((long) high.reduceLanes(VectorOperators.ADD) << 16) + low.reduceLanes(VectorOperators.ADD);
+        }
+        for (; i < count; i++) { // Lines past the last whole vector
+            total += quantities[i] * Math.max(prices[i], 0);
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "vector (" + SPECIES.vectorBitSize() + "-bit, " + SPECIES.length() + " int lanes)";
+    }
+}
@@ -0,0 +1,100 @@
+package friend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Bulk Friend transfer: a sorted address book of BATCH friends encoded and decoded with the
+ * per-record binary codec and with the compact batch codec. Times are per friend.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FriendBatchBenchmark {
+    private static final int BATCH = 1000;
+    private static final String[] LASTNAMES = {
+        "Smith", "Adams", "Nguyen", "Garcia", "Johnson", "Okafor", "Kowalski", "Li", "Martin", "Rossi"
+    };
+
+    private final Friend[] friends = new Friend[BATCH];
+    private final FriendEncoderBin binEncoder = new FriendEncoderBin();
+    private final FriendDecoderBin binDecoder = new FriendDecoderBin();
+    private final FriendEncoderCompact compactEncoder = new FriendEncoderCompact();
+    private final FriendDecoderCompact compactDecoder = new FriendDecoderCompact();
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BATCH * FriendBinConst.MAX_WIRE_LENGTH);
+    private ByteBuffer binEncoded;
+    private ByteBuffer compactEncoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        long id = 1_000_000_000L;
+        for (int i = 0; i < BATCH; i++) {
+            id += 1 + random.nextInt(4);
+            friends[i] = new Friend(id, LASTNAMES[random.nextInt(LASTNAMES.length)],
+                    (short) (1 + random.nextInt(9999)), 36800 + random.nextInt(100),
+                    random.nextBoolean(), random.nextBoolean(), random.nextBoolean());
+        }
+        binEncoded = ByteBuffer.allocateDirect(BATCH * FriendBinConst.MAX_WIRE_LENGTH);
+        for (Friend f : friends) {
+            binEncoder.encode(f, binEncoded);
+        }
+        binEncoded.flip();
+        compactEncoded = ByteBuffer.allocateDirect(BATCH * FriendBinConst.MAX_WIRE_LENGTH);
+        compactEncoder.encode(friends, 0, BATCH, compactEncoded);
+        compactEncoded.flip();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public ByteBuffer encodeBin() throws IOException {
+        out.clear();
+        for (Friend f : friends) {
+            binEncoder.encode(f, out);
+        }
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public ByteBuffer encodeCompact() throws IOException {
+        out.clear();
+        compactEncoder.encode(friends, 0, BATCH, out);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Friend decodeBin() throws IOException {
+        binEncoded.rewind();
+        Friend last = null;
+        while (binEncoded.hasRemaining()) {
+            last = binDecoder.decode(binEncoded);
+        }
+        return last;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Friend[] decodeCompact() throws IOException {
+        compactEncoded.rewind();
+        return compactDecoder.decodeBatch(compactEncoded);
+    }
+}
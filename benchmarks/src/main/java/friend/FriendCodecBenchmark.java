@@ -0,0 +1,95 @@
+package friend;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Binary Friend codec: encoding one Friend to a new array or into a reused buffer, and decoding it
+ * from a stream (TCP receiver), a datagram (UDP receiver) and a buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FriendCodecBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({"4", "32", "255"})
+    int nameLength;
+
+    private final FriendEncoderBin encoder = new FriendEncoderBin();
+    private final FriendDecoderBin decoder = new FriendDecoderBin();
+    private Friend friend;
+    private byte[] encoded;
+    private DatagramPacket packet;
+    private ByteBuffer encodedBuffer;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BATCH * FriendBinConst.MAX_WIRE_LENGTH);
+
+    @Setup
+    public void setUp() throws Exception {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < nameLength; i++) {
+            name.append((char) ('a' + i % 26));
+        }
+        friend = new Friend(123456789123L, name.toString(), (short) 42, 36849, true, false, true);
+        encoded = encoder.encode(friend);
+        packet = new DatagramPacket(encoded, encoded.length);
+        encodedBuffer = ByteBuffer.wrap(encoded);
+    }
+
+    @Benchmark
+    public byte[] encode() throws Exception {
+        return encoder.encode(friend);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeIntoBuffer() throws IOException {
+        out.clear();
+        encoder.encode(friend, out);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public ByteBuffer encodeBatch() throws IOException {
+        out.clear();
+        for (int i = 0; i < BATCH; i++) {
+            encoder.encode(friend, out);
+        }
+        return out;
+    }
+
+    @Benchmark
+    public Friend decodeStream() throws IOException {
+        return decoder.decode(new ByteArrayInputStream(encoded));
+    }
+
+    @Benchmark
+    public Friend decodeDatagram() throws IOException {
+        return decoder.decode(packet);
+    }
+
+    @Benchmark
+    public Friend decodeBuffer() throws IOException {
+        encodedBuffer.clear();
+        return decoder.decode(encodedBuffer);
+    }
+}
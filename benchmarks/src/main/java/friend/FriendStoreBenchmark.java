@@ -0,0 +1,94 @@
+package friend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Receiving FRIENDS binary-encoded friends into the heap FriendStore (decode, then add) and into
+ * FriendOffHeapStore (records copied from the wire), and a flags query over each. Times are per
+ * friend; gc.alloc.rate.norm shows the heap each store costs per friend. The footprint of a whole
+ * stream is printed by RecvTCP and RecvUDP in stream/batch mode, with and without offheap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g", "-XX:MaxDirectMemorySize=1g"})
+public class FriendStoreBenchmark {
+    private static final int FRIENDS = 1 << 20; // One FriendOffHeapStore chunk
+    private static final String[] LASTNAMES = {
+        "Smith", "Adams", "Nguyen", "Garcia", "Johnson", "Okafor", "Kowalski", "Li", "Martin", "Rossi"
+    };
+
+    private final FriendDecoderBin decoder = new FriendDecoderBin();
+    private final FriendStore.Query singleRich = FriendStore.Query.parse("single,rich");
+    private ByteBuffer wire;
+    private FriendStore heapStore;
+    private FriendOffHeapStore offHeapStore;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        FriendEncoderBin encoder = new FriendEncoderBin();
+        wire = ByteBuffer.allocateDirect(FRIENDS * (16 + 8));
+        long id = 1_000_000_000L;
+        for (int i = 0; i < FRIENDS; i++) {
+            id += 1 + random.nextInt(4);
+            encoder.encode(new Friend(id, LASTNAMES[random.nextInt(LASTNAMES.length)],
+                    (short) (1 + random.nextInt(9999)), 36800 + random.nextInt(100),
+                    random.nextBoolean(), random.nextBoolean(), random.nextBoolean()), wire);
+        }
+        wire.flip();
+        heapStore = ingestHeap();
+        offHeapStore = ingestOffHeap();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRIENDS)
+    public FriendStore ingestHeap() throws IOException {
+        wire.rewind();
+        FriendStore store = new FriendStore();
+        while (wire.hasRemaining()) {
+            store.add(decoder.decode(wire));
+        }
+        return store;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRIENDS)
+    public FriendOffHeapStore ingestOffHeap() throws IOException {
+        wire.rewind();
+        FriendOffHeapStore store = new FriendOffHeapStore();
+        while (wire.hasRemaining()) {
+            store.add(wire);
+        }
+        return store;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRIENDS)
+    public int queryHeap() {
+        return heapStore.count(singleRich);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRIENDS)
+    public int queryOffHeap() {
+        return offHeapStore.count(singleRich);
+    }
+}
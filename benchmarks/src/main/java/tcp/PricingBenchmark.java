@@ -0,0 +1,92 @@
+package tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TC for one order with the scalar loop and with the Vector API kernel (PricingKernel,
+ * VectorPricing). total is the kernel alone over lines already priced; priceOrder also reads each
+ * line's unit price out of a catalog image (RequestView.getPrices), held on the heap or mapped from
+ * a binary catalog file. Half of the codes are unknown.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class PricingBenchmark {
+    @Param({"100", "1000", "8000", "100000"})
+    int lines;
+
+    @Param({"scalar", "vector"})
+    String kernel;
+
+    @Param({"heap", "mapped"})
+    String image;
+
+    private PricingKernel.Kernel pricing;
+    private Catalog catalog;
+    private ByteBuffer frame;
+    private final RequestView request = new RequestView();
+    private int[] quantities;
+    private int[] prices;
+
+    @Setup
+    public void setUp() throws IOException {
+        pricing = kernel.equals("vector") ? new VectorPricing() : PricingKernel.SCALAR;
+        Path csv = Files.createTempFile("catalog", ".csv");
+        Path binary = Files.createTempFile("catalog", Catalog.BINARY_SUFFIX);
+        try {
+            OrderFixture.writeCatalog(csv, Catalog.CAPACITY / 2, 8);
+            catalog = Catalog.loadCSV(csv.toString());
+            if (image.equals("mapped")) {
+                catalog.writeBinary(binary.toString());
+                catalog = Catalog.map(binary.toString()); // The mapping outlives the file
+            }
+        } finally {
+            Files.delete(csv);
+            Files.delete(binary);
+        }
+
+        Random rand = new Random(42);
+        List<QuantityCodePair> pairs = new ArrayList<>();
+        for (int i = 0; i < lines; i++) {
+            pairs.add(new QuantityCodePair((short) (1 + rand.nextInt(100)), (short) rand.nextInt(Catalog.CAPACITY)));
+        }
+        byte[] encoded = RequestView.encode(1000, pairs);
+        frame = ByteBuffer.wrap(encoded);
+        request.wrap(frame, 0, encoded.length);
+        quantities = request.getQuantities().clone();
+        prices = request.getPrices(catalog).clone();
+    }
+
+    @Benchmark
+    public long total() {
+        return pricing.total(quantities, prices, lines);
+    }
+
+    @Benchmark
+    public long priceOrder() {
+        request.wrap(frame, 0, frame.limit());
+        return pricing.total(request.getQuantities(), request.getPrices(catalog), request.getLineCount());
+    }
+}
@@ -0,0 +1,41 @@
+package tcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TCP order hot paths with no sockets involved: the client encoding a request (see OrderFixture)
+ * and the server turning a received frame into a response (myFirstTCPServer.handleRequest).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dwire.log=off", "--add-modules", "jdk.incubator.vector"})
+public class TcpOrderBenchmark extends OrderFixture {
+    @Param({"1", "10", "100", "1000", "2000"}) // 2000 lines of 24-byte names come close to the 65,534-byte response limit
+    int lines;
+
+    private ByteBuffer response = ByteBuffer.allocate(myFirstTCPServer.RESPONSE_BUFFER_SIZE);
+
+    @Override
+    protected int lines() {
+        return lines;
+    }
+
+    @Benchmark
+    public ByteBuffer handleRequest() {
+        request.wrap(frame, 0, frame.limit());
+        response = myFirstTCPServer.handleRequest(request, catalog, response);
+        return response;
+    }
+}
@@ -0,0 +1,126 @@
+package udp;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One fragmented order of thousands of lines over loopback, from UdpRequestWindow to an in-process
+ * UdpWorkerServer. Either side's burst of fragments can overrun the other's socket buffer, so this
+ * only completes if the missing fragments are asked for and resent. A failed order or a response with
+ * the wrong TC fails the run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dwire.log=off"})
+public class FragmentedOrderBenchmark {
+    private static final int CATALOG_SIZE = 1024;
+    private static final int NAME_LENGTH = 24;
+
+    @Param({"3000", "20000"})
+    int lines;
+
+    private Path csv;
+    private List<QuantityCodePair> pairs;
+    private int expectedTotal;
+    private DatagramSocket socket;
+    private UdpRequestWindow window;
+    private volatile byte[] response;
+    private volatile int failedTransmissions;
+    private short requestNumber = 1000;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        csv = Files.createTempFile("catalog", ".csv");
+        OrderFixture.writeCatalog(csv, CATALOG_SIZE, NAME_LENGTH);
+        Catalog catalog = Catalog.loadCSV(csv.toString());
+
+        Random rand = new Random(42);
+        int stride = Catalog.CAPACITY / CATALOG_SIZE;
+        pairs = new ArrayList<>();
+        for (int i = 0; i < lines; i++) {
+            pairs.add(new QuantityCodePair((short) (1 + rand.nextInt(100)), (short) (rand.nextInt(CATALOG_SIZE) * stride)));
+        }
+        byte[] frame = RequestView.encode(0, pairs);
+        RequestView view = new RequestView();
+        view.wrap(ByteBuffer.wrap(frame), 0, frame.length);
+        expectedTotal = PricingKernel.total(view, catalog);
+
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        UdpWorkerServer server = new UdpWorkerServer(new CatalogWatcher(csv.toString()),
+                new ReplyCache(4096, 16 << 20, 30_000), 1);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve(port);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "udp-server");
+        serving.setDaemon(true); // Its workers inherit this, so the fork can exit
+        serving.start();
+
+        socket = new DatagramSocket();
+        socket.connect(InetAddress.getLoopbackAddress(), port);
+        window = new UdpRequestWindow(socket, 1, new UdpRequestWindow.Listener() {
+            @Override
+            public void onResponse(short number, byte[] bytes) {
+                response = bytes;
+            }
+
+            @Override
+            public void onFailure(short number, int transmissions) {
+                failedTransmissions = transmissions;
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        window.close();
+        Files.delete(csv);
+    }
+
+    @Benchmark
+    public byte[] order() throws IOException, InterruptedException {
+        response = null;
+        window.submit(RequestView.encode(requestNumber++, pairs));
+        window.drain();
+        if (response == null) {
+            throw new IllegalStateException("Order of " + lines + " lines failed after "
+                    + failedTransmissions + " transmission(s)");
+        }
+        int total = ByteBuffer.wrap(response).getInt(4);
+        if (ByteBuffer.wrap(response).getShort(2) != UdpFragments.MARKER || total != expectedTotal) {
+            throw new IllegalStateException("Order of " + lines + " lines got TC " + total
+                    + ", expected " + expectedTotal);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,41 @@
+package udp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * UDP order hot paths with no sockets involved: the client encoding a request (see OrderFixture)
+ * and the server building a response datagram (myFirstUDPServer.buildResponse) into its reusable buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dwire.log=off", "--add-modules", "jdk.incubator.vector"})
+public class UdpOrderBenchmark extends OrderFixture {
+    @Param({"1", "10", "100", "254"}) // 254 lines fill the server's 1024-byte receive buffer
+    int lines;
+
+    private final ByteBuffer response = ByteBuffer.allocate(myFirstUDPServer.RESPONSE_BUFFER_SIZE);
+
+    @Override
+    protected int lines() {
+        return lines;
+    }
+
+    @Benchmark
+    public ByteBuffer buildResponse() {
+        request.wrap(frame, 0, frame.limit());
+        myFirstUDPServer.buildResponse(request, catalog, response);
+        return response;
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Catalog and workload shared by the TCP and UDP order benchmarks, plus the client side they have
+ * in common (RequestView.encode). The build copies this file into both the tcp and udp packages,
+ * so each copy works with its own tree's Catalog and RequestView.
+ * A subclass supplies the line counts, as its own lines parameter, and the server-side benchmark.
+ * Every line orders a code that is in the catalog, spread over the whole catalog.
+ */
+@State(Scope.Thread)
+public abstract class OrderFixture {
+    @Param({"8", "24"})
+    int nameLength;
+
+    @Param({"32", "1024", "32768"})
+    int catalogSize;
+
+    protected List<QuantityCodePair> pairs;
+    protected Catalog catalog;
+    protected ByteBuffer frame;
+    protected final RequestView request = new RequestView();
+    private int requestNumber;
+
+    /**
+     * Lines per order, from the subclass's lines parameter.
+     */
+    protected abstract int lines();
+
+    @Setup
+    public void setUpOrder() throws IOException {
+        Path csv = Files.createTempFile("catalog", ".csv");
+        try {
+            writeCatalog(csv, catalogSize, nameLength);
+            catalog = Catalog.loadCSV(csv.toString());
+        } finally {
+            Files.delete(csv);
+        }
+
+        Random rand = new Random(42);
+        int stride = Catalog.CAPACITY / catalogSize;
+        pairs = new ArrayList<>();
+        for (int i = 0; i < lines(); i++) {
+            pairs.add(new QuantityCodePair((short) (1 + rand.nextInt(100)), (short) (rand.nextInt(catalogSize) * stride)));
+        }
+        frame = ByteBuffer.wrap(RequestView.encode(1000, pairs));
+    }
+
+    /**
+     * Writes code,name,price lines with catalogSize codes spaced evenly over 0-32767.
+     */
+    static void writeCatalog(Path csv, int catalogSize, int nameLength) throws IOException {
+        int stride = Catalog.CAPACITY / catalogSize;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv))) {
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < catalogSize; i++) {
+                name.setLength(0);
+                name.append("Item").append(i);
+                while (name.length() < nameLength) {
+                    name.append('x');
+                }
+                name.setLength(nameLength);
+                out.println((i * stride) + "," + name + "," + (1 + i % 100));
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeRequest() {
+        return RequestView.encode(requestNumber++, pairs);
+    }
+}